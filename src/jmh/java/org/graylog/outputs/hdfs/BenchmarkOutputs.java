@@ -0,0 +1,63 @@
+package org.graylog.outputs.hdfs;
+
+import com.codahale.metrics.MetricRegistry;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Outputs and messages shared by the benchmarks.
+ */
+final class BenchmarkOutputs {
+
+    static final String STREAM_ID = "benchmark";
+
+    private BenchmarkOutputs() {
+    }
+
+    /**
+     * Configuration of an output writing to the given port, which never flushes on its own.
+     */
+    static Map<String, Object> configuration(int port, String file) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("HDFS_HOST_NAME", "localhost");
+        config.put("HDFS_PORT", port);
+        config.put("USER_NAME", "benchmark");
+        config.put("FILE", file);
+        config.put("FLUSH_INTERVAL", 3600);
+        return config;
+    }
+
+    static WebHDFSOutput create(Map<String, Object> config) throws Exception {
+        return create(config, new MetricRegistry());
+    }
+
+    static WebHDFSOutput create(Map<String, Object> config, MetricRegistry metricRegistry) throws Exception {
+        return new WebHDFSOutput(TestStreams.stream(STREAM_ID), new Configuration(config), metricRegistry);
+    }
+
+    static Message message(int i, int sources) {
+        Message message = new Message("GET /index.html HTTP/1.1 200 " + (1000 + i) + " \"Mozilla/5.0 (X11; Linux x86_64)\"",
+                "host-" + (i % sources) + ".example.org", new DateTime(1444444444000L + i, DateTimeZone.UTC));
+        message.addField("facility", "nginx");
+        message.addField("level", 6);
+        message.addField("response_time", 0.25 + i % 100);
+        message.addField("request_id", "5f0c6a1e-" + i);
+        return message;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,84 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.FakeWebHDFSServer;
+import org.graylog2.plugin.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The full path of a batch of messages: buffering, swapping the buffers and uploading one batch
+ * per file through the name node redirect to the data node. The fake WebHDFS server runs in the
+ * same JVM and discards the uploaded data, so the numbers are those of the output, not of HDFS.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"TEXT", "JSON", "AVRO", "PARQUET"})
+    public String format;
+
+    @Param({"NONE", "GZIP"})
+    public String compression;
+
+    @Param({"16"})
+    public int files;
+
+    private File directory;
+    private FakeWebHDFSServer server;
+    private WebHDFSOutput output;
+    private Message[] messages;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("webhdfs-benchmark").toFile();
+        server = new FakeWebHDFSServer(directory, 0);
+        server.setDiscardUploads(true);
+        server.start();
+        Map<String, Object> config = BenchmarkOutputs.configuration(server.getPort(), "/graylog/${source}.log");
+        config.put("OUTPUT_FORMAT", format);
+        config.put("COMPRESSION", compression);
+        output = BenchmarkOutputs.create(config);
+        messages = new Message[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            messages[i] = BenchmarkOutputs.message(i, files);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.stop();
+        server.stop();
+        BenchmarkOutputs.delete(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void writeAndFlush() throws Exception {
+        for (Message message : messages) {
+            output.write(message);
+        }
+        output.writeToHdfs();
+    }
+}
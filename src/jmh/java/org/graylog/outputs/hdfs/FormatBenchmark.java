@@ -0,0 +1,66 @@
+package org.graylog.outputs.hdfs;
+
+import org.graylog2.plugin.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting a message into the encoded bytes appended to the buffer of its path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    private static final int MESSAGES = 1024;
+
+    @Param({"TEXT", "JSON", "AVRO"})
+    public String format;
+
+    private WebHDFSOutput output;
+    private Message[] messages;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        // never connects, nothing is flushed
+        Map<String, Object> config = BenchmarkOutputs.configuration(1, "/graylog/messages.log");
+        config.put("OUTPUT_FORMAT", format);
+        output = BenchmarkOutputs.create(config);
+        messages = new Message[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = BenchmarkOutputs.message(i, 16);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.stop();
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (MESSAGES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public int formattedMessage() {
+        return output.getFormattedMessage(messages[nextIndex()]).size();
+    }
+}
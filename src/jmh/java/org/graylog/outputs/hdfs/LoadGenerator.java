@@ -0,0 +1,319 @@
+package org.graylog.outputs.hdfs;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.apache.hadoop.fs.http.client.FakeWebHDFSServer;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sustained load test of a {@link WebHDFSOutput} writing to a {@link FakeWebHDFSServer}.
+ * Producer threads write synthetic messages at a fixed total rate, spread over a number of file
+ * paths, for the given duration. Then the output is stopped, and the report shows:
+ * <ul>
+ * <li>sustained messages per second and bytes per second uploaded to the data node</li>
+ * <li>p50, p99 and p99.9 enqueue latency, from the time a message was due until write returned,
+ * so producers falling behind the rate show up as well</li>
+ * <li>p50, p99 and p99.9 of flushes and data node uploads, from the metrics of the output</li>
+ * <li>heap high-water mark, sampled every 100 ms</li>
+ * <li>messages lost on stop: messages written minus those found in the files</li>
+ * </ul>
+ * Options, all optional: {@code --rate} messages per second (0 for as fast as possible),
+ * {@code --duration} seconds, {@code --producers}, {@code --paths}, {@code --size} of the message
+ * text in bytes, {@code --format}, {@code --dir} to keep the files, and for the server
+ * {@code --latency} ms, {@code --throughput} bytes per second, {@code --server-errors},
+ * {@code --resets} and {@code --lease-errors} as rates. Arguments like {@code KEY=VALUE} are
+ * added to the configuration of the output, e.g. {@code FLUSH_INTERVAL=5 COMPRESSION=GZIP}.
+ */
+public class LoadGenerator {
+
+    private final Map<String, String> options = new HashMap<>();
+    private final Map<String, Object> outputConfig = new HashMap<>();
+
+    private final AtomicLong heapHighWater = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(args).run();
+        System.exit(0);
+    }
+
+    LoadGenerator(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else if (args[i].contains("=")) {
+                String key = args[i].substring(0, args[i].indexOf('='));
+                outputConfig.put(key, parseValue(args[i].substring(key.length() + 1)));
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+    }
+
+    private static Object parseValue(String value) {
+        if ("true".equals(value) || "false".equals(value)) {
+            return Boolean.valueOf(value);
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private long option(String name, long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+
+    private double option(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    void run() throws Exception {
+        long rate = option("rate", 20000L);
+        long durationInSeconds = option("duration", 60L);
+        int producerCount = (int) option("producers", 4L);
+        int paths = (int) option("paths", 100L);
+        int size = (int) option("size", 200L);
+        OutputFormat format = OutputFormat.valueOf(options.containsKey("format")
+                ? options.get("format").toUpperCase(Locale.ENGLISH) : "TEXT");
+        boolean keepFiles = options.containsKey("dir");
+        File directory = keepFiles ? new File(options.get("dir"))
+                : Files.createTempDirectory("webhdfs-load").toFile();
+
+        FakeWebHDFSServer server = new FakeWebHDFSServer(directory, 0);
+        server.setLatency(option("latency", 0L));
+        server.setThroughputLimit(option("throughput", 0L));
+        server.setServerErrorRate(option("server-errors", 0.0));
+        server.setResetRate(option("resets", 0.0));
+        server.setLeaseErrorRate(option("lease-errors", 0.0));
+        server.setUploadErrorRate(option("upload-errors", 0.0));
+        server.start();
+
+        Map<String, Object> config = BenchmarkOutputs.configuration(server.getPort(), "/load/${source}.log");
+        config.put("FLUSH_INTERVAL", 1);
+        config.put("OUTPUT_FORMAT", format.name());
+        config.putAll(outputConfig);
+        MetricRegistry metricRegistry = new MetricRegistry();
+        WebHDFSOutput output = BenchmarkOutputs.create(config, metricRegistry);
+
+        System.out.printf(Locale.ENGLISH, "Load: %d producers, %s msgs/s, %d paths, %d byte messages, %s, %d s, files in %s%n",
+                producerCount, rate > 0 ? String.valueOf(rate) : "unthrottled", paths, size, format,
+                durationInSeconds, directory);
+
+        ScheduledExecutorService heapSampler = startHeapSampler();
+        String[] texts = texts(size);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationInSeconds);
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * producerCount / rate : 0;
+        List<Producer> producers = new ArrayList<>();
+        for (int i = 0; i < producerCount; i++) {
+            Producer producer = new Producer(output, i, producerCount, paths, texts, start, end, interval);
+            producers.add(producer);
+            producer.start();
+        }
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(5000, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + 1));
+            long sent = 0;
+            for (Producer producer : producers) {
+                sent += producer.sent;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ENGLISH, "%6.1f s: %d messages, %.0f msgs/s, %s uploaded, heap %s%n",
+                    elapsed, sent, sent / elapsed, bytes(server.getUploadedBytes()), bytes(heapHighWater.get()));
+        }
+
+        LatencyHistogram enqueue = new LatencyHistogram();
+        long sent = 0;
+        long failed = 0;
+        for (Producer producer : producers) {
+            producer.join();
+            enqueue.merge(producer.latencies);
+            sent += producer.sent;
+            failed += producer.failed;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long uploadedBytes = server.getUploadedBytes();
+        // looked up before stop() removes them, read after it, so the final flush is included
+        Timer flushTimer = timer(metricRegistry, "flushTime");
+        Timer uploadTimer = timer(metricRegistry, "dataNodeUploadTime");
+
+        long stopStart = System.nanoTime();
+        output.stop();
+        long stopNanos = System.nanoTime() - stopStart;
+        Snapshot flushes = flushTimer.getSnapshot();
+        Snapshot uploads = uploadTimer.getSnapshot();
+        heapSampler.shutdownNow();
+        server.stop();
+        long written = WrittenMessages.count(directory, format);
+
+        System.out.println();
+        System.out.printf(Locale.ENGLISH, "Sustained:        %.0f msgs/s, %s/s uploaded%n",
+                sent / elapsed, bytes((long) (uploadedBytes / elapsed)));
+        System.out.printf(Locale.ENGLISH, "Enqueue latency:  p50 %s, p99 %s, p99.9 %s, max %s%n",
+                nanos(enqueue.getValue(0.5)), nanos(enqueue.getValue(0.99)), nanos(enqueue.getValue(0.999)),
+                nanos(enqueue.getMax()));
+        System.out.printf(Locale.ENGLISH, "Flush latency:    p50 %s, p99 %s, p99.9 %s, max %s%n",
+                nanos(flushes.getMedian()), nanos(flushes.get99thPercentile()), nanos(flushes.get999thPercentile()),
+                nanos(flushes.getMax()));
+        System.out.printf(Locale.ENGLISH, "Upload latency:   p50 %s, p99 %s, p99.9 %s, max %s (%d uploads)%n",
+                nanos(uploads.getMedian()), nanos(uploads.get99thPercentile()), nanos(uploads.get999thPercentile()),
+                nanos(uploads.getMax()), uploadTimer.getCount());
+        System.out.printf(Locale.ENGLISH, "Heap high-water:  %s%n", bytes(heapHighWater.get()));
+        System.out.printf(Locale.ENGLISH, "Stop:             %s, %d messages written, %d failed writes, %d found, %d lost%n",
+                nanos(stopNanos), sent, failed, written, sent - written);
+        System.out.printf(Locale.ENGLISH, "Output:           %d blocked writes, %d dropped messages, %d dropped batches, "
+                        + "%d spilled batches, %d retries%n",
+                output.getBlockedWrites(), output.getDroppedMessages(), output.getDroppedBatches(),
+                output.getSpilledBatches(), output.getRetries());
+        System.out.printf(Locale.ENGLISH, "Server:           %d requests, %d injected faults%n",
+                server.getRequests(), server.getInjectedFaults());
+
+        if (!keepFiles) {
+            BenchmarkOutputs.delete(directory);
+        }
+    }
+
+    /*
+     * The metric names of an output end with its instance number, so the timer is found by its
+     * name within the output.
+     */
+    private static Timer timer(MetricRegistry metricRegistry, String name) {
+        String suffix = "." + name;
+        for (Map.Entry<String, Timer> entry : metricRegistry.getTimers().entrySet()) {
+            if (entry.getKey().startsWith(WebHDFSOutput.class.getName() + ".") && entry.getKey().endsWith(suffix)) {
+                return entry.getValue();
+            }
+        }
+        throw new IllegalStateException("The output has no timer " + name);
+    }
+
+    private ScheduledExecutorService startHeapSampler() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long used = memory.getHeapMemoryUsage().getUsed();
+                long max;
+                while (used > (max = heapHighWater.get()) && !heapHighWater.compareAndSet(max, used)) {
+                    // retry
+                }
+            }
+        }, 0, 100, TimeUnit.MILLISECONDS);
+        return sampler;
+    }
+
+    /*
+     * Message texts made of random words, so compression gets realistic input.
+     */
+    private static String[] texts(int size) {
+        String[] words = {"GET", "POST", "/index.html", "/api/messages", "HTTP/1.1", "200", "404", "user", "session",
+                "Mozilla/5.0", "(X11; Linux x86_64)", "connection", "timeout", "ms", "request", "id", "=", "ok"};
+        Random random = new Random(42);
+        String[] texts = new String[1024];
+        for (int i = 0; i < texts.length; i++) {
+            StringBuilder sb = new StringBuilder(size + 16);
+            while (sb.length() < size) {
+                sb.append(words[random.nextInt(words.length)]).append(' ').append(random.nextInt(100000)).append(' ');
+            }
+            sb.setLength(size);
+            texts[i] = sb.toString();
+        }
+        return texts;
+    }
+
+    private static String nanos(double nanos) {
+        if (nanos < 1e3) {
+            return String.format(Locale.ENGLISH, "%.0f ns", nanos);
+        } else if (nanos < 1e6) {
+            return String.format(Locale.ENGLISH, "%.1f us", nanos / 1e3);
+        } else if (nanos < 1e9) {
+            return String.format(Locale.ENGLISH, "%.1f ms", nanos / 1e6);
+        }
+        return String.format(Locale.ENGLISH, "%.2f s", nanos / 1e9);
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ENGLISH, "%.1f KB", bytes / 1024.0);
+        }
+        return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    private static class Producer extends Thread {
+        private final WebHDFSOutput output;
+        private final int index;
+        private final int producers;
+        private final int paths;
+        private final String[] texts;
+        private final long start;
+        private final long end;
+        private final long interval;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private volatile long sent;
+        private long failed;
+
+        Producer(WebHDFSOutput output, int index, int producers, int paths, String[] texts, long start, long end,
+                 long interval) {
+            super("LoadGenerator-Producer-" + index);
+            this.output = output;
+            this.index = index;
+            this.producers = producers;
+            this.paths = paths;
+            this.texts = texts;
+            this.start = start;
+            this.end = end;
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            long due = start;
+            long count = 0;
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (interval > 0 && due > now) {
+                    LockSupport.parkNanos(due - now);
+                    continue;
+                }
+                long scheduled = interval > 0 ? due : now;
+                long n = count * producers + index;
+                Message message = new Message(texts[(int) (n & (texts.length - 1))], "host-" + (n % paths),
+                        new DateTime(DateTimeZone.UTC));
+                message.addField("level", (int) (n % 8));
+                message.addField("request_id", n);
+                try {
+                    output.write(message);
+                    count++;
+                    sent = count;
+                } catch (Exception e) {
+                    failed++;
+                }
+                latencies.record(System.nanoTime() - scheduled);
+                due += interval;
+            }
+        }
+    }
+}
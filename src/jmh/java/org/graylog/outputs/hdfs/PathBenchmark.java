@@ -0,0 +1,74 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.URLUtil;
+import org.graylog2.plugin.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering the file path of a message and encoding it for the request URL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+
+    private static final int MESSAGES = 1024;
+
+    @Param({"/graylog/messages.log", "/graylog/${source}/%Y/%m/%d/messages.log"})
+    public String file;
+
+    private WebHDFSOutput output;
+    private Message[] messages;
+    private String[] paths;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        // never connects, nothing is flushed
+        Map<String, Object> config = BenchmarkOutputs.configuration(1, file);
+        output = BenchmarkOutputs.create(config);
+        messages = new Message[MESSAGES];
+        paths = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = BenchmarkOutputs.message(i, 16);
+            paths[i] = output.getFormattedPath(messages[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.stop();
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (MESSAGES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public String formattedPath() {
+        return output.getFormattedPath(messages[nextIndex()]);
+    }
+
+    @Benchmark
+    public String encodePath() {
+        return URLUtil.encodePath(paths[nextIndex()]);
+    }
+}
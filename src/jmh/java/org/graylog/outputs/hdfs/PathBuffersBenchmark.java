@@ -0,0 +1,76 @@
+package org.graylog.outputs.hdfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producers appending to the path buffers while the flush swaps them out. The number of paths
+ * sets how many producers share a buffer; the producer count is changed with -tg, e.g.
+ * {@code -tg 16,1} for 16 producers and one flush.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBuffersBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int paths;
+
+    private PathBuffers buffers;
+    private String[] pathNames;
+
+    @Setup
+    public void setUp() {
+        buffers = new PathBuffers();
+        pathNames = new String[paths];
+        for (int i = 0; i < paths; i++) {
+            pathNames[i] = "/graylog/host-" + i + ".example.org/messages.log";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        private final Utf8Buffer message = new Utf8Buffer(256);
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            message.append(BenchmarkOutputs.message(0, 1).getMessage()).append('\n');
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public int append(Producer producer) {
+        int i = producer.next++;
+        return buffers.append(pathNames[(i & Integer.MAX_VALUE) % pathNames.length], producer.message);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public Map<String, Utf8Buffer> swap() throws InterruptedException {
+        // a flush swaps the buffers now and then, not in a busy loop
+        TimeUnit.MILLISECONDS.sleep(1);
+        return buffers.swap();
+    }
+}
@@ -0,0 +1,237 @@
+package org.graylog.outputs.hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Counts the messages in the files written by an output: lines of text and JSON files, gzipped
+ * or not, records of Avro container files from their block headers, and rows of Parquet files
+ * from their footer.
+ */
+final class WrittenMessages {
+
+    private WrittenMessages() {
+    }
+
+    static long count(File directory, OutputFormat format) throws IOException {
+        long count = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                count += count(file, format);
+            } else if (format == OutputFormat.AVRO) {
+                count += countAvroRecords(file);
+            } else if (format == OutputFormat.PARQUET) {
+                count += countParquetRows(file);
+            } else {
+                count += countLines(file);
+            }
+        }
+        return count;
+    }
+
+    private static long countLines(File file) throws IOException {
+        try (InputStream in = open(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            long lines = 0;
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+            return lines;
+        }
+    }
+
+    private static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        // gzip appends are separate members, which GZIPInputStream reads one after the other
+        return file.getName().contains(".gz") ? new GZIPInputStream(in) : in;
+    }
+
+    /*
+     * Skips the header and then every block, only reading its record count and byte size.
+     */
+    private static long countAvroRecords(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            skip(in, 4);
+            long entries;
+            while ((entries = readLong(in)) != 0) {
+                if (entries < 0) {
+                    // block with byte size
+                    readLong(in);
+                    entries = -entries;
+                }
+                for (long i = 0; i < entries; i++) {
+                    skip(in, readLong(in));
+                    skip(in, readLong(in));
+                }
+            }
+            skip(in, 16);
+            long records = 0;
+            while (in.available() > 0) {
+                records += readLong(in);
+                skip(in, readLong(in) + 16);
+            }
+            return records;
+        }
+    }
+
+    private static long readLong(DataInputStream in) throws IOException {
+        long n = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            n |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void skip(DataInputStream in, long bytes) throws IOException {
+        long left = bytes;
+        while (left > 0) {
+            long skipped = in.skip(left);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+    }
+
+    /*
+     * num_rows is field 3 of the Thrift compact encoded FileMetaData in the footer.
+     */
+    private static long countParquetRows(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < 12) {
+                return 0;
+            }
+            raf.seek(raf.length() - 8);
+            int footerLength = Integer.reverseBytes(raf.readInt());
+            byte[] footer = new byte[footerLength];
+            raf.seek(raf.length() - 8 - footerLength);
+            raf.readFully(footer);
+            CompactReader reader = new CompactReader(footer);
+            int id = 0;
+            int type;
+            while ((type = reader.fieldHeader()) != 0) {
+                id = reader.fieldId(id);
+                if (id == 3) {
+                    return reader.varLong();
+                }
+                reader.skip(type);
+            }
+            return 0;
+        }
+    }
+
+    private static class CompactReader {
+        private final byte[] buf;
+        private int position;
+        private int header;
+
+        CompactReader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int fieldHeader() {
+            header = buf[position++] & 0xff;
+            return header & 0x0f;
+        }
+
+        int fieldId(int previous) {
+            int delta = header >>> 4;
+            return delta != 0 ? previous + delta : (int) varLong();
+        }
+
+        long varLong() {
+            long n = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[position++];
+                n |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        long unsignedVarint() {
+            long n = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[position++];
+                n |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return n;
+        }
+
+        void skip(int type) {
+            switch (type) {
+                case 1:
+                case 2:
+                    // booleans are held by the field header
+                    break;
+                case 3:
+                    position++;
+                    break;
+                case 4:
+                case 5:
+                case 6:
+                    varLong();
+                    break;
+                case 7:
+                    position += 8;
+                    break;
+                case 8:
+                    int length = (int) unsignedVarint();
+                    position += length;
+                    break;
+                case 9:
+                case 10:
+                    int list = buf[position++] & 0xff;
+                    long size = list >>> 4 == 15 ? unsignedVarint() : list >>> 4;
+                    for (long i = 0; i < size; i++) {
+                        skipElement(list & 0x0f);
+                    }
+                    break;
+                case 12:
+                    int id = 0;
+                    int fieldType;
+                    while ((fieldType = fieldHeader()) != 0) {
+                        id = fieldId(id);
+                        skip(fieldType);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected Thrift type " + type);
+            }
+        }
+
+        private void skipElement(int type) {
+            if (type == 1 || type == 2) {
+                // booleans in lists take a byte each
+                position++;
+            } else {
+                skip(type);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.apache.hadoop.fs.http.client;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens and recycles the {@link HttpURLConnection}s used by {@link WebHDFSConnection}.
+ * <p/>
+ * Every connection returned by {@link #open(URL, int)} must be handed back through
+ * {@link #release(HttpURLConnection)} once its response has been read.
+ */
+public interface HttpTransport {
+
+    /**
+     * Opens a connection to the url. A transport limiting its connections waits at most the
+     * timeout, 0 for no limit, for one to become free and fails with a
+     * {@link java.net.SocketTimeoutException} otherwise.
+     */
+    HttpURLConnection open(URL url, int timeoutMillis) throws IOException;
+
+    void release(HttpURLConnection conn);
+
+    PoolStats getStats();
+
+    void close();
+}
@@ -18,6 +18,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.hadoop.security.authentication.client.*;
 import org.apache.hadoop.security.authentication.util.KerberosUtil;
 import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
 import org.ietf.jgss.GSSManager;
 import org.ietf.jgss.GSSName;
 import org.ietf.jgss.Oid;
@@ -26,6 +27,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.*;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
 import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginContext;
@@ -37,6 +40,12 @@ import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The {@link KerberosAuthenticator} implements the Kerberos SPNEGO
@@ -47,6 +56,12 @@ import java.util.Map;
  * <p/>
  * It falls back to the {@link PseudoAuthenticator} if the HTTP endpoint does
  * not trigger an SPNEGO authentication sequence.
+ * <p/>
+ * The login of a principal is shared by all authenticators of that principal
+ * and its ticket granting ticket is renewed in the background, so an
+ * authentication only costs the SPNEGO round trips and no KDC login. The login
+ * is dropped and its renewal cancelled once the last authenticator using it is
+ * closed.
  */
 public class KerberosAuthenticator2 implements Authenticator {
 
@@ -70,6 +85,21 @@ public class KerberosAuthenticator2 implements Authenticator {
 
 	private static final String AUTH_HTTP_METHOD = "OPTIONS";
 
+	/*
+	 * Share of the ticket lifetime after which it is renewed, as Hadoop does.
+	 */
+	private static final double RENEW_WINDOW = 0.8;
+	private static final long MIN_RENEW_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final GSSManager GSS_MANAGER = GSSManager.getInstance();
+	private static final Oid KRB5_PRINCIPAL_NAME = oid("1.2.840.113554.1.2.2.1");
+	private static final Oid KRB5_MECHANISM = oid("1.2.840.113554.1.2.2");
+	private static final ConcurrentMap<String, GSSName> SERVICE_NAMES = new ConcurrentHashMap<String, GSSName>();
+
+	// keyed by principal, guarded by itself
+	private static final Map<String, CachedLogin> LOGINS = new HashMap<String, CachedLogin>();
+	private static final ScheduledThreadPoolExecutor RENEWER = newRenewer();
+
 	/*
 	 * Defines the Kerberos configuration that will be used to obtain the
 	 * Kerberos principal from the Kerberos cache.
@@ -131,6 +161,7 @@ public class KerberosAuthenticator2 implements Authenticator {
 	
 	private String username;
 	private String password;
+	private CachedLogin login;
 	
 	public KerberosAuthenticator2(String username, String password) {
 		super();
@@ -217,28 +248,9 @@ public class KerberosAuthenticator2 implements Authenticator {
 	 */
 	private void doSpnegoSequence(AuthenticatedURL.Token token)
 			throws IOException, AuthenticationException {
+		CachedLogin login = acquireLogin();
 		try {
-			
-/*		//	
-  			AccessControlContext context = AccessController.getContext();
-			Subject subject = Subject.getSubject(context);
-			if (subject == null) {
-				subject = new Subject();
-				LoginContext login = new LoginContext("", subject, null,
-						new KerberosConfiguration());
-				login.login();
-			}
-*/
-			
-			LoginContext loginContext = new LoginContext("", null,
-					new KerberosClientCallbackHandler(username, password),
-					new LoginConfig(this.debug));
-			loginContext.login();
-			if (LOG.isDebugEnabled()) {
-				LOG.debug("Kerberos authenticated user: "
-						+ loginContext.getSubject());
-			}
-			Subject subject = loginContext.getSubject();
+			Subject subject = login.getSubject();
 			
 			Subject.doAs(subject, new PrivilegedExceptionAction<Void>() {
 
@@ -246,16 +258,10 @@ public class KerberosAuthenticator2 implements Authenticator {
 				public Void run() throws Exception {
 					GSSContext gssContext = null;
 					try {
-						GSSManager gssManager = GSSManager.getInstance();
-						String servicePrincipal = "HTTP/"
-								+ KerberosAuthenticator2.this.url.getHost();
-						Oid oid = KerberosUtil
-								.getOidInstance("NT_GSS_KRB5_PRINCIPAL");
-						GSSName serviceName = gssManager.createName(
-								servicePrincipal, oid);
-						oid = KerberosUtil.getOidInstance("GSS_KRB5_MECH_OID");
-						gssContext = gssManager.createContext(serviceName, oid,
-								null, GSSContext.DEFAULT_LIFETIME);
+						GSSName serviceName = getServiceName(KerberosAuthenticator2.this.url
+								.getHost());
+						gssContext = GSS_MANAGER.createContext(serviceName,
+								KRB5_MECHANISM, null, GSSContext.DEFAULT_LIFETIME);
 						gssContext.requestCredDeleg(true);
 						gssContext.requestMutualAuth(true);
 
@@ -287,6 +293,10 @@ public class KerberosAuthenticator2 implements Authenticator {
 				}
 			});
 		} catch (PrivilegedActionException ex) {
+			if (ex.getException() instanceof GSSException) {
+				// e.g. the ticket was revoked, the next attempt logs in again
+				login.invalidate();
+			}
 			throw new AuthenticationException(ex.getException());
 		} catch (LoginException ex) {
 			throw new AuthenticationException(ex);
@@ -333,6 +343,230 @@ public class KerberosAuthenticator2 implements Authenticator {
 		this.debug = debug;
 	}
 
+	/**
+	 * Releases the login of the principal. The login is dropped and its
+	 * renewal cancelled when no other authenticator uses it.
+	 */
+	public synchronized void close() {
+		if (login != null) {
+			release(login);
+			login = null;
+		}
+	}
+
+	private synchronized CachedLogin acquireLogin() {
+		if (login == null) {
+			login = acquire(username, password, debug);
+		}
+		return login;
+	}
+
+	private static ScheduledThreadPoolExecutor newRenewer() {
+		ScheduledThreadPoolExecutor renewer = new ScheduledThreadPoolExecutor(1,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Kerberos-TGT-Renewer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// cancelled renewals of released logins don't stay queued until they are due
+		renewer.setRemoveOnCancelPolicy(true);
+		return renewer;
+	}
+
+	private static Oid oid(String oid) {
+		try {
+			return new Oid(oid);
+		} catch (GSSException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static GSSName getServiceName(String host) throws GSSException {
+		GSSName name = SERVICE_NAMES.get(host);
+		if (name == null) {
+			name = GSS_MANAGER.createName("HTTP/" + host, KRB5_PRINCIPAL_NAME);
+			SERVICE_NAMES.putIfAbsent(host, name);
+		}
+		return name;
+	}
+
+	/*
+	 * A principal configured with a new password logs in again with it on its
+	 * next authentication.
+	 */
+	private static CachedLogin acquire(String username, String password,
+			boolean debug) {
+		synchronized (LOGINS) {
+			CachedLogin login = LOGINS.get(username);
+			if (login == null) {
+				login = new CachedLogin(username, password, debug);
+				LOGINS.put(username, login);
+			} else {
+				login.setPassword(password);
+			}
+			login.references++;
+			return login;
+		}
+	}
+
+	private static void release(CachedLogin login) {
+		synchronized (LOGINS) {
+			if (--login.references > 0) {
+				return;
+			}
+			LOGINS.remove(login.username);
+		}
+		login.dispose();
+	}
+
+	/*
+	 * Login Subject of a principal. It is logged in on first use, and logged in
+	 * again by the renewer once most of the lifetime of its ticket granting
+	 * ticket has passed. The new Subject replaces the old one when it is
+	 * complete, so authentications never wait for the KDC during a renewal.
+	 */
+	private static class CachedLogin {
+		private final String username;
+		private final boolean debug;
+		private String password;
+		private volatile Subject subject;
+		private ScheduledFuture<?> renewal;
+		private boolean disposed;
+		// guarded by LOGINS
+		private int references;
+
+		CachedLogin(String username, String password, boolean debug) {
+			this.username = username;
+			this.password = password;
+			this.debug = debug;
+		}
+
+		Subject getSubject() throws LoginException {
+			Subject current = subject;
+			if (current != null && !isExpired(current)) {
+				return current;
+			}
+			synchronized (this) {
+				if (subject == null || isExpired(subject)) {
+					subject = login();
+					scheduleRenewal();
+				}
+				return subject;
+			}
+		}
+
+		synchronized void invalidate() {
+			subject = null;
+		}
+
+		synchronized void setPassword(String password) {
+			if (!this.password.equals(password)) {
+				this.password = password;
+				subject = null;
+			}
+		}
+
+		synchronized void dispose() {
+			disposed = true;
+			subject = null;
+			password = null;
+			if (renewal != null) {
+				renewal.cancel(false);
+				renewal = null;
+			}
+		}
+
+		private Subject login() throws LoginException {
+			String currentPassword;
+			synchronized (this) {
+				if (disposed) {
+					throw new LoginException("Login of " + username + " was released");
+				}
+				currentPassword = password;
+			}
+			LoginContext loginContext = new LoginContext("", null,
+					new KerberosClientCallbackHandler(username, currentPassword),
+					new LoginConfig(debug));
+			loginContext.login();
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Kerberos authenticated user: "
+						+ loginContext.getSubject());
+			}
+			return loginContext.getSubject();
+		}
+
+		private void renew() {
+			try {
+				Subject renewed = login();
+				synchronized (this) {
+					if (disposed) {
+						return;
+					}
+					subject = renewed;
+					scheduleRenewal();
+				}
+				LOG.info("Renewed Kerberos ticket of {}", username);
+			} catch (LoginException e) {
+				synchronized (this) {
+					if (disposed) {
+						return;
+					}
+					LOG.warn("Failed to renew Kerberos ticket of " + username
+							+ ", retrying in a minute", e);
+					schedule(MIN_RENEW_DELAY_MILLIS);
+				}
+			}
+		}
+
+		private void scheduleRenewal() {
+			KerberosTicket tgt = getTgt(subject);
+			if (tgt == null || tgt.getEndTime() == null) {
+				return;
+			}
+			long start = tgt.getStartTime() != null ? tgt.getStartTime()
+					.getTime() : tgt.getAuthTime().getTime();
+			long renewAt = start
+					+ (long) ((tgt.getEndTime().getTime() - start) * RENEW_WINDOW);
+			schedule(Math.max(MIN_RENEW_DELAY_MILLIS,
+					renewAt - System.currentTimeMillis()));
+		}
+
+		private void schedule(long delayMillis) {
+			if (renewal != null) {
+				renewal.cancel(false);
+			}
+			renewal = RENEWER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					renew();
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+
+		private static boolean isExpired(Subject subject) {
+			KerberosTicket tgt = getTgt(subject);
+			return tgt != null && tgt.getEndTime() != null
+					&& tgt.getEndTime().getTime() <= System.currentTimeMillis();
+		}
+
+		private static KerberosTicket getTgt(Subject subject) {
+			for (KerberosTicket ticket : subject
+					.getPrivateCredentials(KerberosTicket.class)) {
+				KerberosPrincipal server = ticket.getServer();
+				if (server != null
+						&& server.getName().equals(
+								"krbtgt/" + server.getRealm() + "@"
+										+ server.getRealm())) {
+					return ticket;
+				}
+			}
+			return null;
+		}
+	}
+
 	private static class LoginConfig extends Configuration {
 		private boolean debug;
 
@@ -0,0 +1,77 @@
+package org.apache.hadoop.fs.http.client;
+
+/**
+ * Point in time snapshot of the counters kept by a {@link HttpTransport}.
+ */
+public class PoolStats {
+    private final int hosts;
+    private final int leased;
+    private final int pending;
+    private final long requests;
+    private final long reused;
+    private final long discarded;
+    private final long evicted;
+
+    public PoolStats(int hosts, int leased, int pending, long requests, long reused, long discarded, long evicted) {
+        this.hosts = hosts;
+        this.leased = leased;
+        this.pending = pending;
+        this.requests = requests;
+        this.reused = reused;
+        this.discarded = discarded;
+        this.evicted = evicted;
+    }
+
+    /**
+     * Number of hosts the transport currently keeps a pool for.
+     */
+    public int getHosts() {
+        return hosts;
+    }
+
+    /**
+     * Connections handed out and not yet released.
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * Callers waiting for a free connection slot.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Connections released with their response fully read, which lets the socket be kept alive.
+     */
+    public long getReused() {
+        return reused;
+    }
+
+    /**
+     * Connections that had to be closed because their response could not be drained.
+     */
+    public long getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * Host pools dropped after being idle for longer than the idle timeout.
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolStats{hosts=" + hosts + ", leased=" + leased + ", pending=" + pending +
+                ", requests=" + requests + ", reused=" + reused + ", discarded=" + discarded +
+                ", evicted=" + evicted + "}";
+    }
+}
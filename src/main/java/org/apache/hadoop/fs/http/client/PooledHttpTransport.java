@@ -0,0 +1,305 @@
+package org.apache.hadoop.fs.http.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport which keeps connections to the name node and data nodes alive between requests.
+ * <p/>
+ * Sockets are cached by the JDK keep-alive cache as long as the response body is fully read
+ * and the connection is not disconnected. This transport takes care of draining unread error
+ * bodies on release instead of calling {@link HttpURLConnection#disconnect()}, and limits the
+ * number of concurrent connections per host to the configured pool size. Requests wait for a
+ * free connection up to their connect timeout. Per host bookkeeping is evicted once a host has
+ * been idle for longer than the idle timeout. The idle sockets themselves are closed by the
+ * keep-alive cache of the JDK.
+ * <p/>
+ * The JDK keeps at most <code>http.maxConnections</code> (default 5) idle sockets per host. The
+ * property is read once per JVM, so it has to be set on the command line, e.g.
+ * <code>-Dhttp.maxConnections=8</code>, for pool sizes above 5 to reuse all of their sockets.
+ * A warning is logged when it is lower than the pool size.
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000L;
+
+    private static final int DRAIN_LIMIT = 64 * 1024;
+    private static final int JDK_DEFAULT_MAX_CONNECTIONS = 5;
+
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutMillis;
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+    private final ConcurrentMap<HttpURLConnection, HostPool> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public PooledHttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    public PooledHttpTransport(int maxConnectionsPerHost, long idleTimeoutMillis) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be positive");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        warnIfKeepAliveCacheIsSmaller(maxConnectionsPerHost);
+
+        if (idleTimeoutMillis > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "WebHDFS-Pool-Evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(1000L, idleTimeoutMillis / 2);
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    @Override
+    public HttpURLConnection open(URL url, int timeoutMillis) throws IOException {
+        HostPool pool = acquire(url, timeoutMillis);
+
+        try {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Connection", "keep-alive");
+            leases.put(conn, pool);
+            requests.incrementAndGet();
+            return conn;
+        } catch (IOException | RuntimeException e) {
+            pool.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void release(HttpURLConnection conn) {
+        HostPool pool = leases.remove(conn);
+        if (pool == null) {
+            // not leased from this transport or already released
+            return;
+        }
+        try {
+            if (drainErrorStream(conn)) {
+                reused.incrementAndGet();
+            } else {
+                conn.disconnect();
+                discarded.incrementAndGet();
+            }
+        } finally {
+            pool.release();
+        }
+    }
+
+    @Override
+    public PoolStats getStats() {
+        int leased = 0;
+        int pending = 0;
+        for (HostPool pool : pools.values()) {
+            leased += maxConnectionsPerHost - pool.permits.availablePermits();
+            pending += pool.permits.getQueueLength();
+        }
+        return new PoolStats(pools.size(), leased, pending, requests.get(), reused.get(),
+                discarded.get(), evicted.get());
+    }
+
+    @Override
+    public void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (HttpURLConnection conn : leases.keySet()) {
+            conn.disconnect();
+        }
+        leases.clear();
+        pools.clear();
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /*
+     * A pool evicted while the caller waited for it is retired, the caller starts over with
+     * the pool which replaced it, so a host never has more than one active pool. An exhausted
+     * pool fails the request after the timeout, so leaked or long running uploads surface as
+     * retryable timeouts instead of hanging their writers.
+     */
+    private HostPool acquire(URL url, int timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            HostPool pool = getPool(url);
+            try {
+                if (!pool.acquire(timeoutMillis > 0 ? deadline - System.nanoTime() : -1)) {
+                    throw new SocketTimeoutException("No connection to " + pool.key + " became free within "
+                            + timeoutMillis + " ms, all " + maxConnectionsPerHost + " are in use");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection to " + pool.key);
+            }
+            if (pool.lease()) {
+                return pool;
+            }
+            pool.permits.release();
+        }
+    }
+
+    private HostPool getPool(URL url) {
+        String key = url.getProtocol() + "://" + url.getHost() + ":" +
+                (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        HostPool pool = pools.get(key);
+        if (pool == null) {
+            HostPool newPool = new HostPool(key, maxConnectionsPerHost);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    /*
+     * A connection which failed with an error code still has its body pending on the socket.
+     * Reading it to the end returns the socket to the keep-alive cache.
+     */
+    private static boolean drainErrorStream(HttpURLConnection conn) {
+        InputStream es = conn.getErrorStream();
+        if (es == null) {
+            return true;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            int total = 0;
+            int n;
+            while ((n = es.read(buffer)) != -1) {
+                total += n;
+                if (total > DRAIN_LIMIT) {
+                    return false;
+                }
+            }
+            es.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, HostPool>> it = pools.entrySet().iterator();
+        while (it.hasNext()) {
+            HostPool pool = it.next().getValue();
+            if (pool.retireIfIdle(now, idleTimeoutMillis)) {
+                it.remove();
+                evicted.incrementAndGet();
+                LOG.debug("Evicted idle connection pool for {}", pool.key);
+            }
+        }
+    }
+
+    private static void warnIfKeepAliveCacheIsSmaller(int poolSize) {
+        int maxConnections = JDK_DEFAULT_MAX_CONNECTIONS;
+        try {
+            maxConnections = Integer.parseInt(System.getProperty("http.maxConnections",
+                    String.valueOf(JDK_DEFAULT_MAX_CONNECTIONS)));
+        } catch (NumberFormatException e) {
+            // the JDK falls back to its default as well
+        }
+        if (maxConnections < poolSize) {
+            LOG.warn("Connection pool size {} is larger than http.maxConnections {}, only {} idle connections per host "
+                    + "are kept alive. Start the JVM with -Dhttp.maxConnections={} to keep all of them.",
+                    poolSize, maxConnections, maxConnections, poolSize);
+        }
+    }
+
+    private static class HostPool {
+        private final String key;
+        private final Semaphore permits;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private int leased;
+        private boolean retired;
+
+        HostPool(String key, int size) {
+            this.key = key;
+            this.permits = new Semaphore(size, true);
+        }
+
+        /*
+         * Waits at most the timeout for a permit, forever if it is negative.
+         */
+        boolean acquire(long timeoutNanos) throws InterruptedException {
+            if (timeoutNanos < 0) {
+                permits.acquire();
+                return true;
+            }
+            return permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /*
+         * Leasing and retiring are mutually exclusive, an idle pool is never retired while a
+         * permit acquired from it is about to be used.
+         */
+        synchronized boolean lease() {
+            if (retired) {
+                return false;
+            }
+            leased++;
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+
+        void release() {
+            synchronized (this) {
+                leased--;
+                lastUsed = System.currentTimeMillis();
+            }
+            permits.release();
+        }
+
+        synchronized boolean retireIfIdle(long now, long idleTimeoutMillis) {
+            if (leased == 0 && !permits.hasQueuedThreads() && now - lastUsed > idleTimeoutMillis) {
+                retired = true;
+            }
+            return retired;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.apache.hadoop.fs.http.client;
+
+/**
+ * Notified by {@link WebHDFSConnection} about the two halves of every upload, so the time
+ * spent on the name node can be told apart from the time spent on the data nodes.
+ */
+public interface RequestListener {
+
+    RequestListener NONE = new RequestListener() {
+        @Override
+        public void nameNodeRequest(long nanos) {
+        }
+
+        @Override
+        public void dataNodeUpload(long nanos, long bytes) {
+        }
+    };
+
+    /**
+     * The name node answered the CREATE or APPEND request with the data node location.
+     */
+    void nameNodeRequest(long nanos);
+
+    /**
+     * Data was sent to a data node. Called on every flush of an upload stream with the time
+     * and bytes since the previous call, the first timed from opening the connection, and once
+     * more when the data node accepted the upload, timed up to its response.
+     */
+    void dataNodeUpload(long nanos, long bytes);
+}
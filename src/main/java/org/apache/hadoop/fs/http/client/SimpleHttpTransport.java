@@ -0,0 +1,41 @@
+package org.apache.hadoop.fs.http.client;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport which opens a new connection for every request and disconnects it
+ * afterwards, so no socket is ever reused.
+ */
+public class SimpleHttpTransport implements HttpTransport {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong leased = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    @Override
+    public HttpURLConnection open(URL url, int timeoutMillis) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        requests.incrementAndGet();
+        leased.incrementAndGet();
+        return conn;
+    }
+
+    @Override
+    public void release(HttpURLConnection conn) {
+        conn.disconnect();
+        leased.decrementAndGet();
+        discarded.incrementAndGet();
+    }
+
+    @Override
+    public PoolStats getStats() {
+        return new PoolStats(0, (int) leased.get(), 0, requests.get(), 0L, discarded.get(), 0L);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -12,7 +12,8 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.MessageFormat;
-import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 /**
  * ===== HTTP GET <br/>
@@ -47,66 +48,90 @@ public class WebHDFSConnection {
 
     protected static final Logger logger = LoggerFactory.getLogger(WebHDFSConnection.class);
 
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long TOKEN_RETRY_MILLIS = 60 * 1000L;
+
     private String httpfsUrl = null;
     private String principal;
     private String password;
 
-    private Token token = new AuthenticatedURL.Token();
-    private AuthenticatedURL authenticatedURL;
+    // replaced, never modified, once set. Refreshed by one thread at a time under tokenLock.
+    private volatile Token token = new AuthenticatedURL.Token();
+    private volatile long tokenExpiresAt;
+    private final Object tokenLock = new Object();
+    private long nextTokenAttempt;
+    private Authenticator authenticator;
     private AuthenticationType authenticationType;
+    private final HttpTransport transport;
+    private int connectTimeoutMillis;
+    private int readTimeoutMillis;
+    private volatile RequestListener requestListener = RequestListener.NONE;
 
     public WebHDFSConnection(String httpfsUrl, String principal, String password,
                              AuthenticationType authenticationType) {
+        this(httpfsUrl, principal, password, authenticationType, new SimpleHttpTransport());
+    }
+
+    public WebHDFSConnection(String httpfsUrl, String principal, String password,
+                             AuthenticationType authenticationType, HttpTransport transport) {
         this.httpfsUrl = httpfsUrl;
         this.principal = principal;
         this.password = password;
         this.authenticationType = authenticationType;
+        this.transport = transport;
         if (this.authenticationType == AuthenticationType.PSEUDO) {
-            this.authenticatedURL = new AuthenticatedURL(new PseudoAuthenticator2(principal));
+            this.authenticator = new PseudoAuthenticator2(principal);
         } else {
-            this.authenticatedURL = new AuthenticatedURL(new KerberosAuthenticator2(principal, password));
+            this.authenticator = new KerberosAuthenticator2(principal, password);
         }
     }
 
 
     protected HttpURLConnection getURLConnection(String uri) throws AuthenticationException,IOException {
-        HttpURLConnection conn;
         if (authenticationType == AuthenticationType.KERBEROS) {
-            conn = authenticatedURL.openConnection(
-                    new URL(new URL(httpfsUrl), uri), token);
+            return openConnection(new URL(new URL(httpfsUrl), uri));
         } else {
             String spec = uri + "&user.name=" + principal;
-            conn = authenticatedURL.openConnection(new URL(new URL(httpfsUrl), spec), token);
+            return openConnection(new URL(new URL(httpfsUrl), spec));
         }
-        return conn;
     }
 
-    public static synchronized Token generateToken(String srvUrl, String princ, String passwd,
-                                                   AuthenticationType authenticationType) {
-        AuthenticatedURL.Token newToken = new AuthenticatedURL.Token();
-
-        Authenticator authenticator = null;
-        String spec;
-        if (authenticationType == AuthenticationType.KERBEROS) {
-            authenticator = new KerberosAuthenticator2(princ,passwd);
-            spec = "/webhdfs/v1/?op=GETHOMEDIRECTORY";
-        } else {
-            authenticator = new PseudoAuthenticator2(princ);
-            spec = MessageFormat.format("/webhdfs/v1/?op=GETHOMEDIRECTORY&user.name={0}", princ);
+    /*
+     * Same as AuthenticatedURL.openConnection, but the connection is leased from the transport.
+     * Pseudo authentication passes the user name with every request, so only Kerberos needs
+     * to authenticate before the token is set.
+     */
+    private HttpURLConnection openConnection(URL url) throws AuthenticationException, IOException {
+        if (authenticationType == AuthenticationType.KERBEROS && !token.isSet()) {
+            synchronized (tokenLock) {
+                if (!token.isSet()) {
+                    Token newToken = new AuthenticatedURL.Token();
+                    authenticator.authenticate(url, newToken);
+                    setToken(newToken);
+                }
+            }
         }
-        try {
-            HttpURLConnection conn = new AuthenticatedURL(authenticator).openConnection(new URL(new URL(srvUrl), spec), newToken);
-            conn.connect();
-            conn.disconnect();
-        } catch (Exception ex) {
-            logger.error(ex.getMessage());
-            logger.error("[" + princ + ":" + passwd + "]@" + srvUrl, ex);
-            // WARN
-            // throws  IOException,
-            // AuthenticationException, InterruptedException
+        HttpURLConnection conn = transport.open(url, connectTimeoutMillis);
+        conn.setConnectTimeout(connectTimeoutMillis);
+        conn.setReadTimeout(readTimeoutMillis);
+        Token current = token;
+        if (current.isSet()) {
+            AuthenticatedURL.injectToken(conn, current);
         }
+        return conn;
+    }
+
+    /**
+     * Sets the connect and read timeouts of all requests, 0 waits forever. The connect timeout
+     * also limits the wait for a free connection of a pooled transport.
+     */
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
 
-        return newToken;
+    public void setRequestListener(RequestListener requestListener) {
+        this.requestListener = requestListener != null ? requestListener : RequestListener.NONE;
     }
 
     protected static long copy(InputStream input, OutputStream result) throws IOException {
@@ -116,7 +141,6 @@ public class WebHDFSConnection {
         while (-1 != (n = input.read(buffer))) {
             result.write(buffer, 0, n);
             count += n;
-            result.flush();
         }
         result.flush();
         return count;
@@ -144,19 +168,144 @@ public class WebHDFSConnection {
         return response;
     }
 
+    /*
+     * Reads the error body of a failed request. A 404 is reported as FileNotFoundException,
+     * which callers use to create missing files.
+     */
+    private static IOException failure(HttpURLConnection conn, String message) throws IOException {
+        int code = conn.getResponseCode();
+        String body = null;
+        InputStream es = conn.getErrorStream();
+        if (es != null) {
+            StringBuilder sb = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(es, "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    sb.append(line);
+                }
+            } finally {
+                reader.close();
+            }
+            body = sb.toString();
+        }
+        String remoteException = WebHDFSException.parseRemoteException(body);
+        String detail = message + ": " + code + " " + conn.getResponseMessage()
+                + (remoteException != null ? " (" + remoteException + ")" : "");
+        if (code == 404) {
+            return new FileNotFoundException(detail);
+        }
+        return new WebHDFSException(detail, code, remoteException);
+    }
+
+    /**
+     * Gets a new token from the name node if there is none or it expired. Concurrent callers of
+     * this connection wait for a single request instead of sending their own. If the request
+     * fails or the name node returns no token, requests go without one and the next attempt is
+     * made after a minute.
+     */
     public void ensureValidToken() {
-        if (!token.isSet()) { // if token is null
-            token = generateToken(httpfsUrl, principal, password,authenticationType);
-        } else {
-            long currentTime = new Date().getTime();
-            long tokenExpired = Long.parseLong(token.toString().split("&")[3].split("=")[1]);
-            logger.debug("[currentTime vs. tokenExpired] " + currentTime + " " + tokenExpired);
+        if (token.isSet() && System.currentTimeMillis() <= tokenExpiresAt) {
+            return;
+        }
+        synchronized (tokenLock) {
+            long now = System.currentTimeMillis();
+            if ((token.isSet() && now <= tokenExpiresAt) || now < nextTokenAttempt) {
+                return;
+            }
+            nextTokenAttempt = now + TOKEN_RETRY_MILLIS;
+            try {
+                Token newToken = fetchToken();
+                if (newToken.isSet()) {
+                    setToken(newToken);
+                } else {
+                    logger.debug("No authentication token returned by {}", httpfsUrl);
+                    token = new AuthenticatedURL.Token();
+                }
+            } catch (IOException | AuthenticationException e) {
+                logger.warn("Unable to get an authentication token for " + principal + " from " + httpfsUrl, e);
+                token = new AuthenticatedURL.Token();
+            }
+        }
+    }
 
-            if (currentTime > tokenExpired) { // if the token is expired
-                token = generateToken(httpfsUrl, principal, password,authenticationType);
+    /*
+     * Pseudo authentication only needs the user name, so the token is fetched through the
+     * transport like any other request. The SPNEGO handshake of Kerberos runs on connections
+     * of its own.
+     */
+    private Token fetchToken() throws IOException, AuthenticationException {
+        if (authenticationType == AuthenticationType.KERBEROS) {
+            Token newToken = new AuthenticatedURL.Token();
+            authenticator.authenticate(new URL(new URL(httpfsUrl), "/webhdfs/v1/?op=GETHOMEDIRECTORY"), newToken);
+            return newToken;
+        }
+        HttpURLConnection conn = transport.open(new URL(new URL(httpfsUrl),
+                MessageFormat.format("/webhdfs/v1/?op=GETHOMEDIRECTORY&user.name={0}", principal)), connectTimeoutMillis);
+        try {
+            conn.setConnectTimeout(connectTimeoutMillis);
+            conn.setReadTimeout(readTimeoutMillis);
+            conn.connect();
+            Token newToken = extractToken(conn);
+            result(conn, true);
+            return newToken;
+        } finally {
+            transport.release(conn);
+        }
+    }
+
+    /*
+     * Same as AuthenticatedURL.extractToken, but finds the Set-Cookie header in any case, as
+     * some servers send it as Set-cookie.
+     */
+    private static Token extractToken(HttpURLConnection conn) throws IOException, AuthenticationException {
+        int code = conn.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_CREATED
+                && code != HttpURLConnection.HTTP_ACCEPTED) {
+            throw new AuthenticationException("Authentication failed, status: " + code + ", message: "
+                    + conn.getResponseMessage());
+        }
+        String prefix = AuthenticatedURL.AUTH_COOKIE + "=";
+        for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+            if (!"Set-Cookie".equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            for (String cookie : header.getValue()) {
+                if (cookie.startsWith(prefix)) {
+                    String value = cookie.substring(prefix.length());
+                    int separator = value.indexOf(';');
+                    if (separator > -1) {
+                        value = value.substring(0, separator);
+                    }
+                    if (value.length() > 0) {
+                        return new AuthenticatedURL.Token(value);
+                    }
+                }
             }
         }
+        return new AuthenticatedURL.Token();
+    }
 
+    private void setToken(Token newToken) {
+        tokenExpiresAt = parseExpiry(newToken);
+        token = newToken;
+    }
+
+    /*
+     * The expiry is the e field of the token, u=<user>&p=<principal>&t=<type>&e=<millis>&s=<signature>.
+     * Tokens without one are fetched again after a minute.
+     */
+    private static long parseExpiry(Token token) {
+        for (String field : token.toString().replace("\"", "").split("&")) {
+            if (field.startsWith("e=")) {
+                try {
+                    return Long.parseLong(field.substring(2));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+        return System.currentTimeMillis() + TOKEN_RETRY_MILLIS;
     }
 
 	/*
@@ -177,10 +326,12 @@ public class WebHDFSConnection {
     public String getHomeDirectory() throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection("/webhdfs/v1/?op=GETHOMEDIRECTORY");
-        conn.connect();
-        Response response = result(conn, true);
-        conn.disconnect();
-        return response.getData();
+        try {
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -198,17 +349,18 @@ public class WebHDFSConnection {
     public String open(String path, OutputStream os) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=OPEN", URLUtil.encodePath(path)));
-        conn.setRequestMethod("GET");
-        conn.setRequestProperty("Content-Type", "application/octet-stream");
-        conn.connect();
-        InputStream is = conn.getInputStream();
-        copy(is, os);
-        is.close();
-        os.close();
-        Response resp = result(conn, false);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("GET");
+            conn.setRequestProperty("Content-Type", "application/octet-stream");
+            conn.connect();
+            InputStream is = conn.getInputStream();
+            copy(is, os);
+            is.close();
+            os.close();
+            return result(conn, false).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -224,12 +376,13 @@ public class WebHDFSConnection {
     public String getContentSummary(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=GETCONTENTSUMMARY", URLUtil.encodePath(path)));
-        conn.setRequestMethod("GET");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("GET");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -246,12 +399,13 @@ public class WebHDFSConnection {
     public String listStatus(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=LISTSTATUS", URLUtil.encodePath(path)));
-        conn.setRequestMethod("GET");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("GET");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -267,12 +421,13 @@ public class WebHDFSConnection {
     public String getFileStatus(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=LISTSTATUS", URLUtil.encodePath(path)));
-        conn.setRequestMethod("GET");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("GET");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -288,12 +443,13 @@ public class WebHDFSConnection {
     public String getFileCheckSum(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=GETFILECHECKSUM", URLUtil.encodePath(path)));
-        conn.setRequestMethod("GET");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("GET");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
 	/*
@@ -318,44 +474,14 @@ public class WebHDFSConnection {
      */
     public String create(String path, InputStream is) throws IOException,
             AuthenticationException {
-        ensureValidToken();
-        String redirectUrl = null;
-        HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=CREATE", URLUtil.encodePath(path)));
-        conn.setRequestMethod("PUT");
-        conn.setInstanceFollowRedirects(false);
-        conn.connect();
-        logger.debug("Location:" + conn.getHeaderField("Location"));
-        Response resp = result(conn, true);
-        if (conn.getResponseCode() == 307)
-            redirectUrl = conn.getHeaderField("Location");
-        conn.disconnect();
-
-        if (redirectUrl != null) {
-            if(authenticationType == AuthenticationType.KERBEROS) {
-                conn = authenticatedURL.openConnection(new URL(redirectUrl), token);
-            } else {
-                conn = (HttpURLConnection) new URL(redirectUrl).openConnection();
-            }
-            conn.setRequestMethod("PUT");
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-            conn.setUseCaches(false);
-            conn.setRequestProperty("Content-Type", "application/octet-stream");
-            // conn.setRequestProperty("Transfer-Encoding", "chunked");
-            final int _SIZE = is.available();
-            conn.setRequestProperty("Content-Length", "" + _SIZE);
-            conn.setFixedLengthStreamingMode(_SIZE);
-            conn.connect();
-            OutputStream os = conn.getOutputStream();
+        ChunkedUploadStream os = (ChunkedUploadStream) openCreateStream(path);
+        try {
             copy(is, os);
-            // Util.copyStream(is, os);
+        } finally {
             is.close();
             os.close();
-            resp = result(conn, false);
-            conn.disconnect();
         }
-
-        return resp.getData();
+        return os.getResponse().getData();
     }
 
     /**
@@ -373,12 +499,13 @@ public class WebHDFSConnection {
     public String mkdirs(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=MKDIRS", URLUtil.encodePath(path)));
-        conn.setRequestMethod("PUT");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -397,12 +524,13 @@ public class WebHDFSConnection {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=CREATESYMLINK&destination={1}",
                 URLUtil.encodePath(srcPath),URLUtil.encodePath(destPath)));
-        conn.setRequestMethod("PUT");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -421,12 +549,13 @@ public class WebHDFSConnection {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=RENAME&destination={1}",
                 URLUtil.encodePath(srcPath),URLUtil.encodePath(destPath)));
-        conn.setRequestMethod("PUT");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -444,12 +573,13 @@ public class WebHDFSConnection {
     public String setPermission(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=SETPERMISSION", URLUtil.encodePath(path)));
-        conn.setRequestMethod("PUT");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -467,12 +597,13 @@ public class WebHDFSConnection {
     public String setOwner(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=SETOWNER", URLUtil.encodePath(path)));
-        conn.setRequestMethod("PUT");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -490,12 +621,13 @@ public class WebHDFSConnection {
     public String setReplication(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=SETREPLICATION", URLUtil.encodePath(path)));
-        conn.setRequestMethod("PUT");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
     /**
@@ -513,12 +645,13 @@ public class WebHDFSConnection {
     public String setTimes(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=SETTIMES", URLUtil.encodePath(path)));
-        conn.setRequestMethod("PUT");
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
-
-        return resp.getData();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
     }
 
 	/*
@@ -540,44 +673,158 @@ public class WebHDFSConnection {
      */
     public String append(String path, InputStream is) throws IOException,
             AuthenticationException {
+        ChunkedUploadStream os = (ChunkedUploadStream) openAppendStream(path);
+        try {
+            copy(is, os);
+        } finally {
+            is.close();
+            os.close();
+        }
+        return os.getResponse().getData();
+    }
+
+    /**
+     * Opens an APPEND to the given file and returns the body of the data node request. The name
+     * node is asked for the data node location once, after which everything written to the
+     * stream is sent using chunked transfer encoding, so the size of the upload doesn't need to
+     * be known up front. The request completes when the stream is closed.
+     *
+     * @param path
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException
+     * @throws AuthenticationException
+     */
+    public OutputStream openAppendStream(String path) throws IOException, AuthenticationException {
+        return openRedirectedStream(MessageFormat.format("/webhdfs/v1/{0}?op=APPEND", URLUtil.encodePath(path)), "POST");
+    }
+
+    /**
+     * Same as {@link #openAppendStream(String)}, but creates the file. Existing files are not
+     * overwritten, the name node rejects the request with a FileAlreadyExistsException instead.
+     *
+     * @param path
+     * @throws WebHDFSException if the file exists
+     * @throws IOException
+     * @throws AuthenticationException
+     */
+    public OutputStream openCreateStream(String path) throws IOException, AuthenticationException {
+        return openRedirectedStream(MessageFormat.format("/webhdfs/v1/{0}?op=CREATE&overwrite=false",
+                URLUtil.encodePath(path)), "PUT");
+    }
+
+    private OutputStream openRedirectedStream(String uri, String method) throws IOException,
+            AuthenticationException {
         ensureValidToken();
         String redirectUrl = null;
-        HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=APPEND", URLUtil.encodePath(path)));
-        conn.setRequestMethod("POST");
-        conn.setInstanceFollowRedirects(false);
-        conn.connect();
-        logger.debug("Location:" + conn.getHeaderField("Location"));
-        Response resp = result(conn, true);
-        if (conn.getResponseCode() == 307)
+        long start = System.nanoTime();
+        HttpURLConnection conn = getURLConnection(uri);
+        try {
+            conn.setRequestMethod(method);
+            conn.setInstanceFollowRedirects(false);
+            conn.connect();
+            if (conn.getResponseCode() != 307) {
+                throw failure(conn, "Redirect to data node failed for " + uri);
+            }
+            result(conn, true);
             redirectUrl = conn.getHeaderField("Location");
-        conn.disconnect();
+        } finally {
+            transport.release(conn);
+        }
+        requestListener.nameNodeRequest(System.nanoTime() - start);
+        if (redirectUrl == null) {
+            throw new WebHDFSException("No data node location returned for " + uri, 307, null);
+        }
 
-        if (redirectUrl != null) {
-            if(authenticationType == AuthenticationType.KERBEROS) {
-                conn = authenticatedURL.openConnection(new URL(redirectUrl), token);
-            } else {
-                conn = (HttpURLConnection) new URL(redirectUrl).openConnection();
-            }
-            conn.setRequestMethod("POST");
+        start = System.nanoTime();
+        if(authenticationType == AuthenticationType.KERBEROS) {
+            conn = openConnection(new URL(redirectUrl));
+        } else {
+            conn = transport.open(new URL(redirectUrl), connectTimeoutMillis);
+            conn.setConnectTimeout(connectTimeoutMillis);
+            conn.setReadTimeout(readTimeoutMillis);
+        }
+        try {
+            conn.setRequestMethod(method);
             conn.setDoOutput(true);
             conn.setDoInput(true);
             conn.setUseCaches(false);
             conn.setRequestProperty("Content-Type", "application/octet-stream");
-            // conn.setRequestProperty("Transfer-Encoding", "chunked");
-            final int _SIZE = is.available();
-            conn.setRequestProperty("Content-Length", "" + _SIZE);
-            conn.setFixedLengthStreamingMode(_SIZE);
+            conn.setChunkedStreamingMode(CHUNK_SIZE);
             conn.connect();
-            OutputStream os = conn.getOutputStream();
-            copy(is, os);
-            // Util.copyStream(is, os);
-            is.close();
-            os.close();
-            resp = result(conn, true);
-            conn.disconnect();
+            return new ChunkedUploadStream(conn, conn.getOutputStream(), start);
+        } catch (IOException | RuntimeException e) {
+            transport.release(conn);
+            throw e;
+        }
+    }
+
+    /*
+     * Streams the request body of an upload to the data node. Closing the stream finishes
+     * the request and fails if the data node did not accept the data. Every flush reports
+     * the time and bytes since the previous report, so streams kept open across flushes
+     * show up in the metrics before they are closed.
+     */
+    private class ChunkedUploadStream extends FilterOutputStream {
+        private final HttpURLConnection conn;
+        private long reportedAt;
+        private long bytes;
+        private boolean closed;
+        private Response response;
+
+        ChunkedUploadStream(HttpURLConnection conn, OutputStream out, long startedAt) {
+            super(out);
+            this.conn = conn;
+            this.reportedAt = startedAt;
         }
 
-        return resp.getData();
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            if (bytes > 0) {
+                report();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+                if (conn.getResponseCode() >= 300) {
+                    throw failure(conn, "Upload to " + conn.getURL().getHost() + " failed");
+                }
+                response = result(conn, true);
+            } finally {
+                transport.release(conn);
+            }
+            report();
+        }
+
+        private void report() {
+            long now = System.nanoTime();
+            requestListener.dataNodeUpload(now - reportedAt, bytes);
+            reportedAt = now;
+            bytes = 0;
+        }
+
+        Response getResponse() {
+            return response;
+        }
     }
 
 	/*
@@ -601,13 +848,29 @@ public class WebHDFSConnection {
     public String delete(String path) throws IOException, AuthenticationException {
         ensureValidToken();
         HttpURLConnection conn = getURLConnection(MessageFormat.format("/webhdfs/v1/{0}?op=DELETE", URLUtil.encodePath(path)));
-        conn.setRequestMethod("DELETE");
-        conn.setInstanceFollowRedirects(false);
-        conn.connect();
-        Response resp = result(conn, true);
-        conn.disconnect();
+        try {
+            conn.setRequestMethod("DELETE");
+            conn.setInstanceFollowRedirects(false);
+            conn.connect();
+            return result(conn, true).getData();
+        } finally {
+            transport.release(conn);
+        }
+    }
+
+    /**
+     * Releases the pooled connections held by the transport of this connection, and the
+     * Kerberos login of its principal.
+     */
+    public void close() {
+        transport.close();
+        if (authenticator instanceof KerberosAuthenticator2) {
+            ((KerberosAuthenticator2) authenticator).close();
+        }
+    }
 
-        return resp.getData();
+    public PoolStats getPoolStats() {
+        return transport.getStats();
     }
 
     // Begin Getter & Setter
@@ -0,0 +1,45 @@
+package org.apache.hadoop.fs.http.client;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Thrown when a name node or data node answers a WebHDFS request with an unexpected status.
+ * Carries the status code and the simple name of the server side exception from the
+ * <code>RemoteException</code> JSON body, if there was one.
+ */
+public class WebHDFSException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Pattern REMOTE_EXCEPTION = Pattern.compile("\"exception\"\\s*:\\s*\"([^\"]+)\"");
+
+    private final int statusCode;
+    private final String remoteException;
+
+    public WebHDFSException(String message, int statusCode, String remoteException) {
+        super(message);
+        this.statusCode = statusCode;
+        this.remoteException = remoteException;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Simple class name of the server side exception, e.g. RecoveryInProgressException, or null.
+     */
+    public String getRemoteException() {
+        return remoteException;
+    }
+
+    static String parseRemoteException(String body) {
+        if (body == null) {
+            return null;
+        }
+        Matcher matcher = REMOTE_EXCEPTION.matcher(body);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+}
@@ -0,0 +1,390 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.WebHDFSConnection;
+import org.apache.hadoop.security.authentication.client.AuthenticationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps one streaming APPEND open per file, so consecutive flushes to the same path don't
+ * go through the name node again. Streams are closed once they have been idle for longer
+ * than the close interval, have been open for longer than the reopen interval, or hold more
+ * unconfirmed data than the given maximum.
+ * <p/>
+ * Writes to different paths run concurrently, writes to the same path are serialized by its
+ * session.
+ * <p/>
+ * The data node only confirms an upload when its stream is closed, so a session keeps a copy
+ * of everything written to it until then. If the stream fails on a write, the copy is kept
+ * and written ahead of the next write to the file, usually the retry of the failed data, so
+ * the file still receives its data in order. A copy no write picks up within the close
+ * interval, and the copy of a stream failing on close, is handed to the {@link Recovery} to
+ * be written again. Data the data node persisted before failing may then be written twice.
+ * A stream created over a file which turned out to exist fails on close as well, the file is
+ * known from then on, so its data is written again as an APPEND.
+ * <p/>
+ * While a stream is open the HDFS lease of the file is held by this output, so other writers
+ * can't append to it until the stream is closed.
+ * <p/>
+ * Every open stream holds a pooled connection to its data node, so the number of open streams
+ * is capped. Opening a stream beyond the cap first closes the least recently used one,
+ * otherwise a flush writing more files than there are pooled connections would wait for a
+ * connection only the close task could free.
+ */
+public class AppendSessions {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AppendSessions.class);
+
+    public static final long DEFAULT_MAX_UNCONFIRMED_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Receives the data of a stream which failed after it was written to it.
+     */
+    public interface Recovery {
+        void recover(String path, Utf8Buffer data);
+    }
+
+    private final WebHDFSConnection hdfsConnection;
+    private final KnownFiles knownFiles;
+    private final Compression compression;
+    private final int compressionLevel;
+    private final long idleTimeoutInMillis;
+    private final long maxAgeInMillis;
+    private final long maxUnconfirmedBytes;
+    private final Recovery recovery;
+    private final Semaphore slots;
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Leftover> leftovers = new ConcurrentHashMap<>();
+    private final AtomicLong unconfirmedBytes = new AtomicLong();
+
+    public AppendSessions(WebHDFSConnection hdfsConnection, KnownFiles knownFiles, Compression compression,
+                          int compressionLevel, long idleTimeoutInMillis, long maxAgeInMillis,
+                          long maxUnconfirmedBytes, int maxSessions, Recovery recovery) {
+        this.hdfsConnection = hdfsConnection;
+        this.knownFiles = knownFiles;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+        this.idleTimeoutInMillis = idleTimeoutInMillis;
+        this.maxAgeInMillis = maxAgeInMillis;
+        this.maxUnconfirmedBytes = maxUnconfirmedBytes;
+        this.recovery = recovery;
+        this.slots = new Semaphore(maxSessions);
+    }
+
+    /**
+     * Writes the data to the open stream of the file, opening one if needed. If the write
+     * fails, the exception is thrown for the caller to retry the data, and the data written
+     * to the stream before is kept to go ahead of it.
+     */
+    public void write(String path, Payload data) throws IOException, AuthenticationException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Session session = sessions.get(path);
+            if (session == null) {
+                reserveSlot();
+                try {
+                    session = open(path, now);
+                } catch (IOException | AuthenticationException | RuntimeException e) {
+                    slots.release();
+                    throw e;
+                }
+                Session existing = sessions.putIfAbsent(path, session);
+                if (existing != null) {
+                    closeSession(session);
+                    session = existing;
+                }
+            }
+
+            try {
+                if (session.write(data, now)) {
+                    return;
+                }
+            } catch (IOException e) {
+                sessions.remove(path, session);
+                throw e;
+            }
+            // expired or closed concurrently, open a new one
+            sessions.remove(path, session);
+        }
+    }
+
+    /**
+     * Closes the streams which are idle for longer than the close interval or older than the
+     * reopen interval, and recovers the data of failed streams no write picked up within the
+     * close interval.
+     */
+    public void closeExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (entry.getValue().isExpired(now) && sessions.remove(entry.getKey(), entry.getValue())) {
+                closeSession(entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Leftover> entry : leftovers.entrySet()) {
+            if (now - entry.getValue().failedAt >= idleTimeoutInMillis) {
+                recoverLeftover(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Closes the stream to the file, if one is open, and recovers the data of a failed stream
+     * to it. If closing fails, the data written to the stream has been recovered before the
+     * exception is thrown.
+     */
+    public void close(String path) throws IOException {
+        Session session = sessions.remove(path);
+        try {
+            if (session != null) {
+                session.close();
+            }
+        } finally {
+            recoverLeftover(path);
+        }
+    }
+
+    public void closeAll() {
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (sessions.remove(entry.getKey(), entry.getValue())) {
+                closeSession(entry.getValue());
+            }
+        }
+        for (String path : leftovers.keySet()) {
+            recoverLeftover(path);
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Bytes written to open or failed streams which the data nodes did not confirm yet.
+     */
+    public long getUnconfirmedBytes() {
+        return unconfirmedBytes.get();
+    }
+
+    /*
+     * Closes the least recently used streams until a slot is free. Slots taken by streams
+     * still being opened are waited for.
+     */
+    private void reserveSlot() throws InterruptedIOException {
+        try {
+            while (!slots.tryAcquire()) {
+                Session eldest = null;
+                for (Session session : sessions.values()) {
+                    if (eldest == null || session.lastWrite < eldest.lastWrite) {
+                        eldest = session;
+                    }
+                }
+                if (eldest == null) {
+                    if (slots.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } else if (sessions.remove(eldest.path, eldest)) {
+                    LOG.debug("Closing append stream to {} to open another one", eldest.path);
+                    closeSession(eldest);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to open an append stream");
+        }
+    }
+
+    private Session open(String path, long now) throws IOException, AuthenticationException {
+        OutputStream stream = compression.compress(knownFiles.open(hdfsConnection, path), compressionLevel);
+        LOG.debug("Opened append stream to {}", path);
+        return new Session(path, stream, now);
+    }
+
+    /*
+     * Writes to a file are serialized by its session, and a stream only fails while the write
+     * holds it, so a file has at most one leftover at a time.
+     */
+    private void keepLeftover(String path, Utf8Buffer data, long now) {
+        if (data.size() == 0) {
+            return;
+        }
+        LOG.warn("Append stream to {} failed, writing the {} bytes written since it was opened again with the next "
+                + "data of the file", path, data.size());
+        unconfirmedBytes.addAndGet(data.size());
+        leftovers.put(path, new Leftover(data, now));
+    }
+
+    private Leftover takeLeftover(String path) {
+        Leftover leftover = leftovers.remove(path);
+        if (leftover != null) {
+            unconfirmedBytes.addAndGet(-leftover.data.size());
+        }
+        return leftover;
+    }
+
+    private void recoverLeftover(String path) {
+        Leftover leftover = takeLeftover(path);
+        if (leftover != null) {
+            recover(path, leftover.data);
+        }
+    }
+
+    private void recover(String path, Utf8Buffer data) {
+        if (data.size() == 0) {
+            return;
+        }
+        if (recovery != null) {
+            LOG.warn("Append stream to {} failed, recovering {} bytes written since it was opened", path,
+                    data.size());
+            recovery.recover(path, data);
+        } else {
+            LOG.warn("Append stream to {} failed, {} bytes written since it was opened are lost", path,
+                    data.size());
+        }
+    }
+
+    private static void closeSession(Session session) {
+        try {
+            if (session.close()) {
+                LOG.debug("Closed append stream to {}", session.path);
+            }
+        } catch (IOException e) {
+            LOG.warn("Exception while closing append stream to " + session.path, e);
+        }
+    }
+
+    private class Session {
+        private final String path;
+        private final OutputStream stream;
+        private final long openedAt;
+        private volatile long lastWrite;
+        private boolean closed;
+        private Utf8Buffer unconfirmed = new Utf8Buffer(1024);
+        private final OutputStream copy = new OutputStream() {
+            @Override
+            public void write(int b) {
+                unconfirmed.appendByte(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                unconfirmed.append(b, off, len);
+            }
+        };
+
+        Session(String path, OutputStream stream, long openedAt) {
+            this.path = path;
+            this.stream = stream;
+            this.openedAt = openedAt;
+            this.lastWrite = openedAt;
+        }
+
+        /*
+         * Returns false without writing if the session is closed or expired. The data is only
+         * kept once it was written, a failed write is thrown to the caller to be retried. The
+         * leftover of a failed stream to the file is older than anything written to this one.
+         */
+        synchronized boolean write(Payload data, long now) throws IOException {
+            if (closed) {
+                return false;
+            }
+            if (isExpired(now)) {
+                closeSession(this);
+                return false;
+            }
+            Leftover leftover = takeLeftover(path);
+            try {
+                if (leftover != null) {
+                    leftover.data.writeTo(stream);
+                }
+                data.writeTo(stream);
+                stream.flush();
+            } catch (IOException e) {
+                closeQuietly();
+                Utf8Buffer written = release();
+                if (leftover != null) {
+                    written = leftover.data.append(written);
+                }
+                keepLeftover(path, written, now);
+                throw e;
+            }
+            if (leftover != null) {
+                keep(leftover.data);
+            }
+            keep(data);
+            lastWrite = now;
+            if (unconfirmed.size() >= maxUnconfirmedBytes) {
+                sessions.remove(path, this);
+                closeSession(this);
+            }
+            return true;
+        }
+
+        boolean isExpired(long now) {
+            return (idleTimeoutInMillis > 0 && now - lastWrite >= idleTimeoutInMillis)
+                    || (maxAgeInMillis > 0 && now - openedAt >= maxAgeInMillis);
+        }
+
+        synchronized boolean close() throws IOException {
+            if (closed) {
+                return false;
+            }
+            markClosed();
+            try {
+                stream.close();
+            } catch (IOException e) {
+                recover(path, release());
+                throw e;
+            }
+            release();
+            return true;
+        }
+
+        private void keep(Payload data) throws IOException {
+            int before = unconfirmed.size();
+            data.writeTo(copy);
+            unconfirmed.addRecords(data.getRecordCount());
+            unconfirmedBytes.addAndGet(unconfirmed.size() - before);
+        }
+
+        private void closeQuietly() {
+            markClosed();
+            try {
+                stream.close();
+            } catch (IOException e) {
+                LOG.debug("Exception while closing failed append stream", e);
+            }
+        }
+
+        private void markClosed() {
+            closed = true;
+            slots.release();
+        }
+
+        private Utf8Buffer release() {
+            Utf8Buffer data = unconfirmed;
+            unconfirmedBytes.addAndGet(-data.size());
+            unconfirmed = new Utf8Buffer(16);
+            return data;
+        }
+    }
+
+    private static class Leftover {
+        private final Utf8Buffer data;
+        private final long failedAt;
+
+        Leftover(Utf8Buffer data, long failedAt) {
+            this.data = data;
+            this.failedAt = failedAt;
+        }
+    }
+}
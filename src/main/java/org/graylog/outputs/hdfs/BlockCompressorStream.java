@@ -0,0 +1,101 @@
+package org.graylog.outputs.hdfs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the block format of Hadoop's BlockCompressorStream, which its SnappyCodec and Lz4Codec
+ * read: every block is the int size of its uncompressed data, followed by the int size of the
+ * compressed data and the compressed data, big endian. Blocks don't depend on each other, so
+ * appending to a file just adds blocks.
+ * <p/>
+ * Data is compressed in blocks of the given size. Flushing compresses and writes the data
+ * buffered so far as a smaller block, so an open append stream sends everything written to it.
+ */
+abstract class BlockCompressorStream extends FilterOutputStream {
+
+    private final byte[] buffer;
+    private byte[] compressed;
+    private int count;
+    private boolean closed;
+
+    BlockCompressorStream(OutputStream out, int blockSize) {
+        super(out);
+        this.buffer = new byte[blockSize];
+    }
+
+    /**
+     * Maximum size of the compressed data of the given number of bytes.
+     */
+    protected abstract int maxCompressedLength(int length);
+
+    /**
+     * Compresses the first length bytes of the input into the output and returns the size of
+     * the compressed data.
+     */
+    protected abstract int compress(byte[] input, int length, byte[] output) throws IOException;
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeBlock();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) {
+                writeBlock();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeBlock();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int maxLength = maxCompressedLength(count);
+        if (compressed == null || compressed.length < maxLength) {
+            compressed = new byte[maxLength];
+        }
+        int length = compress(buffer, count, compressed);
+        writeInt(count);
+        writeInt(length);
+        out.write(compressed, 0, length);
+        count = 0;
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
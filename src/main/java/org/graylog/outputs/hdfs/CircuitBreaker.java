@@ -0,0 +1,111 @@
+package org.graylog.outputs.hdfs;
+
+/**
+ * Stops writes to HDFS after consecutive failures, so a struggling cluster isn't hit by
+ * every flush. After the open time a single probe write is let through (half open): it
+ * closes the breaker when it succeeds and reopens it for twice as long when it fails, up
+ * to the maximum open time.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openTimeMillis;
+    private final long maxOpenTimeMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long currentOpenTimeMillis;
+    private long openedAt;
+    private boolean probing;
+    private long openCount;
+
+    public CircuitBreaker(int failureThreshold, long openTimeMillis, long maxOpenTimeMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openTimeMillis = openTimeMillis;
+        this.maxOpenTimeMillis = Math.max(openTimeMillis, maxOpenTimeMillis);
+        this.currentOpenTimeMillis = openTimeMillis;
+    }
+
+    /**
+     * Whether a write may be attempted now. In half open state only one caller at a time is
+     * allowed to probe.
+     */
+    public synchronized boolean allowRequest() {
+        if (failureThreshold <= 0) {
+            return true;
+        }
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < currentOpenTimeMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probing = true;
+                return true;
+            default:
+                if (probing) {
+                    return false;
+                }
+                probing = true;
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        currentOpenTimeMillis = openTimeMillis;
+        probing = false;
+    }
+
+    public synchronized void recordFailure() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            currentOpenTimeMillis = Math.min(currentOpenTimeMillis * 2, maxOpenTimeMillis);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        probing = false;
+        openCount++;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Number of times the breaker opened.
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Milliseconds until the breaker lets the next probe through, 0 if it isn't open.
+     */
+    public synchronized long getRemainingOpenTime() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, currentOpenTimeMillis - (System.currentTimeMillis() - openedAt));
+    }
+}
@@ -0,0 +1,102 @@
+package org.graylog.outputs.hdfs;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of the data written to HDFS. Every upload stream is compressed on its own, so a
+ * file written by several appends consists of concatenated gzip members, which gzip and the
+ * Hadoop codecs read as one stream, but some other readers stop after the first one. Snappy and
+ * LZ4 are written in the block format of the Hadoop codecs, which appends just continue.
+ * <p/>
+ * There is no zstd: its Java bindings need Java 8, and Graylog 1.0 runs on Java 7.
+ */
+public enum Compression {
+    NONE("") {
+        @Override
+        public OutputStream compress(OutputStream out, int level) {
+            return out;
+        }
+    },
+    GZIP(".gz") {
+        @Override
+        public OutputStream compress(OutputStream out, final int level) throws IOException {
+            // sync flush, so flushing an open append stream sends everything written so far
+            return new GZIPOutputStream(out, BUFFER_SIZE, true) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+    },
+    SNAPPY(".snappy") {
+        @Override
+        public OutputStream compress(OutputStream out, int level) {
+            // snappy has no levels
+            return new BlockCompressorStream(out, BLOCK_SIZE) {
+                @Override
+                protected int maxCompressedLength(int length) {
+                    return Snappy.maxCompressedLength(length);
+                }
+
+                @Override
+                protected int compress(byte[] input, int length, byte[] output) throws IOException {
+                    return Snappy.compress(input, 0, length, output, 0);
+                }
+            };
+        }
+    },
+    LZ4(".lz4") {
+        @Override
+        public OutputStream compress(OutputStream out, int level) {
+            // levels above 6 use the slower high compression mode, like the lz4 command line tool
+            final LZ4Compressor compressor = level > 6 ? LZ4Factory.fastestInstance().highCompressor()
+                    : LZ4Factory.fastestInstance().fastCompressor();
+            return new BlockCompressorStream(out, BLOCK_SIZE) {
+                @Override
+                protected int maxCompressedLength(int length) {
+                    return compressor.maxCompressedLength(length);
+                }
+
+                @Override
+                protected int compress(byte[] input, int length, byte[] output) {
+                    return compressor.compress(input, 0, length, output, 0, output.length);
+                }
+            };
+        }
+    };
+
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // below the 256 KB buffers of the Hadoop codecs, which have to hold a whole block
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final String extension;
+
+    Compression(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * File name extension of the compressed files, like .gz.
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Returns a stream compressing into the given one. Closing it completes the compressed
+     * stream and closes the given one.
+     *
+     * @param level 1 (fastest) to 9 (best), or -1 for the default of the codec
+     */
+    public abstract OutputStream compress(OutputStream out, int level) throws IOException;
+}
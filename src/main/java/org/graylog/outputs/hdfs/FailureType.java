@@ -0,0 +1,75 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.WebHDFSException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Classification of failed HDFS writes, deciding whether a write is retried and counted
+ * against the circuit breaker.
+ */
+public enum FailureType {
+    /**
+     * The name node did not redirect the request to a data node.
+     */
+    REDIRECT(true),
+    /**
+     * Lease recovery of the file is still in progress, e.g. after a writer died.
+     */
+    RECOVERY_IN_PROGRESS(true),
+    /**
+     * 5xx from the name node or a data node.
+     */
+    SERVER_ERROR(true),
+    /**
+     * Connect or read timeout, or no pooled connection became free within the connect timeout.
+     */
+    TIMEOUT(true),
+    /**
+     * Connection refused or reset.
+     */
+    NETWORK(true),
+    /**
+     * Errors which a retry won't fix, like missing permissions or invalid paths.
+     */
+    CLIENT_ERROR(false);
+
+    private final boolean retryable;
+
+    FailureType(boolean retryable) {
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    public static FailureType of(Throwable t) {
+        if (t instanceof WebHDFSException) {
+            WebHDFSException e = (WebHDFSException) t;
+            String remote = e.getRemoteException();
+            if (e.getStatusCode() == 307) {
+                return REDIRECT;
+            }
+            if (e.getStatusCode() >= 500) {
+                return SERVER_ERROR;
+            }
+            if ("RecoveryInProgressException".equals(remote) || "AlreadyBeingCreatedException".equals(remote)) {
+                return RECOVERY_IN_PROGRESS;
+            }
+            if ("StandbyException".equals(remote) || "RetriableException".equals(remote)) {
+                return SERVER_ERROR;
+            }
+            return CLIENT_ERROR;
+        }
+        if (t instanceof SocketTimeoutException) {
+            return TIMEOUT;
+        }
+        if (t instanceof FileNotFoundException || !(t instanceof IOException)) {
+            return CLIENT_ERROR;
+        }
+        return NETWORK;
+    }
+}
@@ -0,0 +1,166 @@
+package org.graylog.outputs.hdfs;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.graylog2.plugin.Message;
+import org.joda.time.ReadableInstant;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Formats messages as one JSON object per line, holding all message fields or the selected
+ * ones. Every thread keeps its own streaming generator, which writes through a small adapter
+ * into the {@link Utf8Buffer} of the message, so neither the generator nor its buffers are
+ * allocated per message.
+ * <p/>
+ * Timestamps are written as ISO 8601 strings, like the text format does.
+ */
+public class JsonLinesFormatter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .setRootValueSeparator(null);
+
+    private final List<String> includedFields;
+    private final Set<String> excludedFields;
+    private final ThreadLocal<Writer> writer = new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+            return new Writer();
+        }
+    };
+
+    /**
+     * @param includedFields comma separated fields to write, in this order. Empty for all fields
+     * @param excludedFields comma separated fields to leave out
+     */
+    public JsonLinesFormatter(String includedFields, String excludedFields) {
+        this.includedFields = split(includedFields);
+        this.excludedFields = new HashSet<>(split(excludedFields));
+    }
+
+    private static List<String> split(String fields) {
+        List<String> result = new ArrayList<>();
+        if (fields != null) {
+            for (String field : fields.split(",")) {
+                if (!field.trim().isEmpty()) {
+                    result.add(field.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the message as a JSON object, terminated by a newline, to the buffer.
+     */
+    public void format(Message message, Utf8Buffer out) {
+        Writer w = writer.get();
+        w.target.buffer = out;
+        try {
+            JsonGenerator generator = w.generator;
+            generator.writeStartObject();
+            if (includedFields.isEmpty()) {
+                for (Map.Entry<String, Object> field : message.getFieldsEntries()) {
+                    if (!excludedFields.contains(field.getKey())) {
+                        generator.writeFieldName(field.getKey());
+                        writeValue(generator, field.getValue());
+                    }
+                }
+            } else {
+                for (String field : includedFields) {
+                    Object value = message.getField(field);
+                    if (value != null && !excludedFields.contains(field)) {
+                        generator.writeFieldName(field);
+                        writeValue(generator, value);
+                    }
+                }
+            }
+            generator.writeEndObject();
+            generator.flush();
+        } catch (IOException | RuntimeException e) {
+            // the generator is left in the middle of an object
+            writer.remove();
+            throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+        } finally {
+            w.target.buffer = null;
+        }
+        out.append('\n');
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof CharSequence) {
+            generator.writeString(value.toString());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            generator.writeNumber(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof ReadableInstant) {
+            generator.writeString(value.toString());
+        } else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        } else if (value instanceof Collection) {
+            generator.writeStartArray();
+            for (Object element : (Collection<?>) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeString(String.valueOf(value));
+        }
+    }
+
+    private static class Writer {
+        private final BufferTarget target = new BufferTarget();
+        private final JsonGenerator generator;
+
+        Writer() {
+            try {
+                generator = JSON_FACTORY.createGenerator(target);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /*
+     * Hands the bytes flushed by the generator to the buffer of the current message.
+     */
+    private static class BufferTarget extends OutputStream {
+        private final byte[] single = new byte[1];
+        private Utf8Buffer buffer;
+
+        @Override
+        public void write(int b) {
+            single[0] = (byte) b;
+            buffer.append(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.append(b, off, len);
+        }
+    }
+}
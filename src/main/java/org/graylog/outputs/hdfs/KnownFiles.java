@@ -0,0 +1,182 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.WebHDFSConnection;
+import org.apache.hadoop.fs.http.client.WebHDFSException;
+import org.apache.hadoop.security.authentication.client.AuthenticationException;
+
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of the files known to exist in HDFS, deciding whether a write starts with an
+ * APPEND or a CREATE. Known files are appended to right away, other files are created
+ * right away, so neither a new file nor a known one costs a failed name node request.
+ * A 404 on APPEND removes the file from the cache. A file is only added once an upload to it
+ * completed.
+ * <p/>
+ * The name node redirects a CREATE without checking whether the file exists, the data node
+ * rejects it with a FileAlreadyExistsException once the upload completes. The file is known
+ * from then on, and {@link #write} writes the data again as an APPEND. A name node which
+ * rejects the CREATE right away gets an APPEND right away.
+ * <p/>
+ * CREATE makes missing parent directories, so directories don't need to be tracked. An
+ * optional header, like the header of an Avro container file, is written to every file
+ * when it is created.
+ */
+public class KnownFiles {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final String FILE_EXISTS = "FileAlreadyExistsException";
+
+    private final Map<String, Boolean> files;
+    private final Payload header;
+    private final AtomicLong misses = new AtomicLong();
+
+    public KnownFiles(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param header written to the start of every file created, or null
+     */
+    public KnownFiles(final int capacity, Payload header) {
+        this.header = header;
+        this.files = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Opens an upload stream to the end of the file, creating the file if needed. Closing the
+     * stream fails with a {@link WebHDFSException} for which {@link #isFileExists} is true if
+     * the file was created concurrently or existed without being known.
+     */
+    public OutputStream open(WebHDFSConnection hdfsConnection, String path) throws IOException,
+            AuthenticationException {
+        OutputStream stream;
+        boolean created = false;
+        if (contains(path)) {
+            try {
+                stream = hdfsConnection.openAppendStream(path);
+            } catch (FileNotFoundException e) {
+                // deleted or moved away since we last wrote to it
+                remove(path);
+                misses.incrementAndGet();
+                stream = hdfsConnection.openCreateStream(path);
+                created = true;
+            }
+        } else {
+            try {
+                stream = hdfsConnection.openCreateStream(path);
+                created = true;
+            } catch (WebHDFSException e) {
+                if (!isFileExists(e)) {
+                    throw e;
+                }
+                misses.incrementAndGet();
+                stream = hdfsConnection.openAppendStream(path);
+            }
+        }
+        if (created && header != null) {
+            header.writeTo(stream);
+        }
+        return new FileStream(stream, path, created);
+    }
+
+    /**
+     * Writes the data to the end of the file, creating the file if needed.
+     */
+    public void write(WebHDFSConnection hdfsConnection, String path, Payload data, Compression compression,
+                      int compressionLevel) throws IOException, AuthenticationException {
+        try {
+            writeOnce(hdfsConnection, path, data, compression, compressionLevel);
+        } catch (WebHDFSException e) {
+            if (!isFileExists(e)) {
+                throw e;
+            }
+            writeOnce(hdfsConnection, path, data, compression, compressionLevel);
+        }
+    }
+
+    private void writeOnce(WebHDFSConnection hdfsConnection, String path, Payload data, Compression compression,
+                           int compressionLevel) throws IOException, AuthenticationException {
+        OutputStream stream = compression.compress(open(hdfsConnection, path), compressionLevel);
+        try {
+            data.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Whether a CREATE failed because the file exists.
+     */
+    public static boolean isFileExists(WebHDFSException e) {
+        return FILE_EXISTS.equals(e.getRemoteException());
+    }
+
+    public synchronized boolean contains(String path) {
+        return files.get(path) != null;
+    }
+
+    public synchronized void add(String path) {
+        files.put(path, Boolean.TRUE);
+    }
+
+    public synchronized void remove(String path) {
+        files.remove(path);
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    /**
+     * Number of writes which guessed wrong and needed a second name node request.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /*
+     * Adds the file once its upload completed.
+     */
+    private class FileStream extends FilterOutputStream {
+        private final String path;
+        private final boolean created;
+
+        FileStream(OutputStream out, String path, boolean created) {
+            super(out);
+            this.path = path;
+            this.created = created;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } catch (WebHDFSException e) {
+                if (created && isFileExists(e)) {
+                    misses.incrementAndGet();
+                    add(path);
+                }
+                throw e;
+            }
+            add(path);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.graylog.outputs.hdfs;
+
+import org.graylog2.plugin.Message;
+import org.joda.time.ReadableInstant;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message format, compiled once into literal text and references to message fields like
+ * <code>${source}</code>. Formatting looks up only the referenced fields and encodes them
+ * straight into a {@link Utf8Buffer}, so no intermediate Strings are built for text fields,
+ * integers and timestamps.
+ * <p/>
+ * Same rules as the StrSubstitutor based formatting it replaces: fields missing from a message
+ * are left as they are in the format, <code>$${</code> escapes a literal <code>${</code>, and
+ * every message ends with a newline.
+ */
+public class MessageFormatter {
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = ISODateTimeFormat.dateTime();
+    private static final String FIELD_SEPARATOR = " | ";
+
+    private final Segment[] segments;
+
+    private MessageFormatter(List<Segment> segments) {
+        this.segments = segments.toArray(new Segment[segments.size()]);
+    }
+
+    public static MessageFormatter compile(String format) {
+        List<Segment> segments = new ArrayList<>();
+        if (format == null || format.isEmpty()) {
+            // timestamp | source | message, written as "null" when missing
+            segments.add(new FieldSegment(Message.FIELD_TIMESTAMP, false));
+            segments.add(new LiteralSegment(FIELD_SEPARATOR));
+            segments.add(new FieldSegment(Message.FIELD_SOURCE, false));
+            segments.add(new LiteralSegment(FIELD_SEPARATOR));
+            segments.add(new FieldSegment(Message.FIELD_MESSAGE, false));
+            return new MessageFormatter(segments);
+        }
+
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < format.length()) {
+            char c = format.charAt(i);
+            if (c == '$' && format.startsWith("$${", i)) {
+                literal.append("${");
+                i += 3;
+            } else if (c == '$' && format.startsWith("${", i) && format.indexOf('}', i + 2) > i + 2) {
+                int end = format.indexOf('}', i + 2);
+                addLiteral(segments, literal);
+                segments.add(new FieldSegment(format.substring(i + 2, end), true));
+                i = end + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        addLiteral(segments, literal);
+        return new MessageFormatter(segments);
+    }
+
+    private static void addLiteral(List<Segment> segments, StringBuilder literal) {
+        if (literal.length() > 0) {
+            segments.add(new LiteralSegment(literal.toString()));
+            literal.setLength(0);
+        }
+    }
+
+    /**
+     * Appends the formatted message, terminated by a newline, to the buffer.
+     */
+    public void format(Message message, Utf8Buffer out) {
+        int start = out.size();
+        for (Segment segment : segments) {
+            segment.appendTo(message, out);
+        }
+        if (out.size() == start || !out.endsWith('\n')) {
+            out.append('\n');
+        }
+    }
+
+    private static void appendValue(Object value, Utf8Buffer out) {
+        if (value instanceof CharSequence) {
+            out.append((CharSequence) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.append(((Number) value).longValue());
+        } else if (value instanceof ReadableInstant) {
+            // same output as DateTime.toString()
+            try {
+                TIMESTAMP_FORMAT.printTo(out, (ReadableInstant) value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            out.append(String.valueOf(value));
+        }
+    }
+
+    private interface Segment {
+        void appendTo(Message message, Utf8Buffer out);
+    }
+
+    private static class LiteralSegment implements Segment {
+        private final byte[] bytes;
+
+        LiteralSegment(String text) {
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void appendTo(Message message, Utf8Buffer out) {
+            out.append(bytes, 0, bytes.length);
+        }
+    }
+
+    private static class FieldSegment implements Segment {
+        private final String name;
+        private final byte[] placeholder;
+        private final boolean keepPlaceholder;
+
+        FieldSegment(String name, boolean keepPlaceholder) {
+            this.name = name;
+            this.placeholder = ("${" + name + "}").getBytes(StandardCharsets.UTF_8);
+            this.keepPlaceholder = keepPlaceholder;
+        }
+
+        @Override
+        public void appendTo(Message message, Utf8Buffer out) {
+            Object value = message.getField(name);
+            if (value == null && keepPlaceholder) {
+                out.append(placeholder, 0, placeholder.length);
+            } else {
+                appendValue(value, out);
+            }
+        }
+    }
+}
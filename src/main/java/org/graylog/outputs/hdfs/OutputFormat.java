@@ -0,0 +1,36 @@
+package org.graylog.outputs.hdfs;
+
+/**
+ * Layout of the files written to HDFS.
+ */
+public enum OutputFormat {
+    /**
+     * One line per message, formatted with the message format.
+     */
+    TEXT(""),
+    /**
+     * One JSON object per line, holding the fields of the message.
+     */
+    JSON(".json"),
+    /**
+     * Columnar Parquet files, built in memory and uploaded once they are complete.
+     */
+    PARQUET(".parquet"),
+    /**
+     * Avro object container files, with one block per flush and file.
+     */
+    AVRO(".avro");
+
+    private final String extension;
+
+    OutputFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Extension added to the file path, empty if the format has none.
+     */
+    public String getExtension() {
+        return extension;
+    }
+}
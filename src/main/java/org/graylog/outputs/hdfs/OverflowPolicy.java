@@ -0,0 +1,23 @@
+package org.graylog.outputs.hdfs;
+
+/**
+ * What the output does when the data it buffers exceeds its memory limit.
+ */
+public enum OverflowPolicy {
+    /**
+     * Writers wait until a flush frees memory, pushing back into Graylog's output buffer.
+     */
+    BLOCK,
+    /**
+     * The oldest batches waiting to be written are discarded.
+     */
+    DROP_OLDEST,
+    /**
+     * Incoming messages are discarded.
+     */
+    DROP_NEWEST,
+    /**
+     * The oldest batches waiting to be written are moved to local disk and written once HDFS accepts data again.
+     */
+    SPILL
+}
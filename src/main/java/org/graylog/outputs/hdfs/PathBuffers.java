@@ -0,0 +1,186 @@
+package org.graylog.outputs.hdfs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Double buffered map of file path to the UTF-8 encoded messages waiting to be written to it.
+ * <p/>
+ * Producers append to the buffer of their path in the current generation without taking a
+ * lock: each claims its range of the buffer with an atomic add and copies its message into it,
+ * so producers of the same path copy in parallel. A buffer is a list of chunks, and a claim
+ * running past the end of a chunk moves on to the next one, which is linked with a CAS.
+ * <p/>
+ * {@link #swap()} replaces the current generation with an empty one and hands the old buffers
+ * to the flush once every producer which was still appending to them is done. A buffer held
+ * in a single chunk is handed over as it is, others are joined into one. New chunks are sized
+ * after what the path received in the previous generation, so usually one chunk suffices.
+ */
+public class PathBuffers {
+
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private final AtomicReference<Generation> current = new AtomicReference<>(new Generation());
+    private volatile Map<String, Integer> sizeHints = new HashMap<>();
+
+    /**
+     * Appends the encoded message to the buffer of the path.
+     *
+     * @return the size in bytes of the buffer of the path after the append
+     */
+    public int append(String path, Utf8Buffer message) {
+        Generation generation = enter();
+        try {
+            int size = generation.getBuffer(path).append(message);
+            generation.messages.incrementAndGet();
+            generation.bytes.addAndGet(message.size());
+            return size;
+        } finally {
+            generation.writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Starts a new generation and returns the buffers of the previous one.
+     */
+    public Map<String, Utf8Buffer> swap() {
+        Generation old = current.getAndSet(new Generation());
+        while (old.writers.get() > 0) {
+            Thread.yield();
+        }
+        Map<String, Utf8Buffer> buffers = new HashMap<>(old.buffers.size() * 2);
+        Map<String, Integer> hints = new HashMap<>(old.buffers.size() * 2);
+        for (Map.Entry<String, PathBuffer> entry : old.buffers.entrySet()) {
+            PathBuffer buffer = entry.getValue();
+            buffers.put(entry.getKey(), buffer.toUtf8Buffer());
+            hints.put(entry.getKey(), buffer.size.get());
+        }
+        sizeHints = hints;
+        return buffers;
+    }
+
+    /**
+     * Messages appended since the last swap.
+     */
+    public int getMessageCount() {
+        return current.get().messages.get();
+    }
+
+    /**
+     * Bytes appended since the last swap.
+     */
+    public long getByteCount() {
+        return current.get().bytes.get();
+    }
+
+    /*
+     * Registers the calling producer with the current generation, so a concurrent swap waits
+     * for its append to complete.
+     */
+    private Generation enter() {
+        while (true) {
+            Generation generation = current.get();
+            generation.writers.incrementAndGet();
+            if (current.get() == generation) {
+                return generation;
+            }
+            generation.writers.decrementAndGet();
+        }
+    }
+
+    private class Generation {
+        private final ConcurrentMap<String, PathBuffer> buffers = new ConcurrentHashMap<>();
+        private final AtomicInteger writers = new AtomicInteger();
+        private final AtomicInteger messages = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+
+        PathBuffer getBuffer(String path) {
+            PathBuffer buffer = buffers.get(path);
+            if (buffer == null) {
+                Integer hint = sizeHints.get(path);
+                int capacity = hint == null ? MIN_CHUNK_SIZE
+                        : Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, hint + hint / 4));
+                PathBuffer newBuffer = new PathBuffer(capacity);
+                buffer = buffers.putIfAbsent(path, newBuffer);
+                if (buffer == null) {
+                    buffer = newBuffer;
+                }
+            }
+            return buffer;
+        }
+    }
+
+    private static class PathBuffer {
+        private final Chunk head;
+        private volatile Chunk tail;
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger records = new AtomicInteger();
+
+        PathBuffer(int capacity) {
+            head = new Chunk(capacity);
+            tail = head;
+        }
+
+        int append(Utf8Buffer message) {
+            int length = message.size();
+            Chunk chunk = tail;
+            while (true) {
+                int position = chunk.claimed.getAndAdd(length);
+                int capacity = chunk.data.length;
+                if (position + length <= capacity) {
+                    System.arraycopy(message.array(), 0, chunk.data, position, length);
+                    break;
+                }
+                if (position <= capacity) {
+                    // the first claim past the end, every later one starts past the end as well
+                    chunk.limit = position;
+                }
+                Chunk next = chunk.next.get();
+                if (next == null) {
+                    next = new Chunk(Math.max(length, Math.min(capacity * 2, MAX_CHUNK_SIZE)));
+                    if (!chunk.next.compareAndSet(null, next)) {
+                        next = chunk.next.get();
+                    }
+                }
+                if (tail == chunk) {
+                    tail = next;
+                }
+                chunk = next;
+            }
+            records.addAndGet(message.getRecordCount());
+            return size.addAndGet(length);
+        }
+
+        /*
+         * Only called once no producer appends anymore.
+         */
+        Utf8Buffer toUtf8Buffer() {
+            if (head.next.get() == null) {
+                return new Utf8Buffer(head.data, head.claimed.get(), records.get());
+            }
+            Utf8Buffer buffer = new Utf8Buffer(size.get());
+            for (Chunk chunk = head; chunk != null; chunk = chunk.next.get()) {
+                buffer.append(chunk.data, 0, chunk.next.get() == null ? chunk.claimed.get() : chunk.limit);
+            }
+            buffer.addRecords(records.get());
+            return buffer;
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private final AtomicInteger claimed = new AtomicInteger();
+        private final AtomicReference<Chunk> next = new AtomicReference<>();
+        private volatile int limit;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+}
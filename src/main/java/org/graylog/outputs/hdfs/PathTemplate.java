@@ -0,0 +1,191 @@
+package org.graylog.outputs.hdfs;
+
+import org.graylog2.plugin.Message;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * File path template, compiled once into a list of segments: literal text, message field
+ * references like <code>${source}</code> and date components like <code>%Y</code>, which are
+ * formatted like the <code>%t</code> conversions of {@link String#format}.
+ * <p/>
+ * Date components only change when the timestamp moves to another second or minute, so the
+ * formatted components of the last time bucket are cached and shared by all messages in it.
+ * <code>$${</code> escapes a literal <code>${</code>, fields missing from a message are left
+ * as they are in the template.
+ */
+public class PathTemplate {
+
+    private static final long MINUTE_MILLIS = 60000L;
+    private static final long SECOND_MILLIS = 1000L;
+
+    private final Segment[] segments;
+    private final char[] dateConversions;
+    private final long bucketMillis;
+    private final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+    private volatile DateParts cachedDateParts;
+
+    private PathTemplate(List<Segment> segments, List<Character> dateConversions) {
+        this.segments = segments.toArray(new Segment[segments.size()]);
+        this.dateConversions = new char[dateConversions.size()];
+        long bucket = MINUTE_MILLIS;
+        for (int i = 0; i < this.dateConversions.length; i++) {
+            char c = dateConversions.get(i);
+            this.dateConversions[i] = c;
+            bucket = Math.min(bucket, bucketMillisOf(c));
+        }
+        this.bucketMillis = bucket;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the template contains an unknown date conversion
+     */
+    public static PathTemplate compile(String template) {
+        List<Segment> segments = new ArrayList<>();
+        List<Character> dateConversions = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c == '$' && template.startsWith("$${", i)) {
+                literal.append("${");
+                i += 3;
+            } else if (c == '$' && template.startsWith("${", i) && template.indexOf('}', i + 2) > i + 2) {
+                int end = template.indexOf('}', i + 2);
+                addLiteral(segments, literal);
+                segments.add(new FieldSegment(template.substring(i + 2, end)));
+                i = end + 1;
+            } else if (c == '%' && i + 1 < template.length()) {
+                char conversion = template.charAt(i + 1);
+                // fails with an IllegalFormatException on unknown conversions
+                String.format("%1$t" + conversion, new Date(0));
+                addLiteral(segments, literal);
+                segments.add(new DateSegment(dateConversions.size()));
+                dateConversions.add(conversion);
+                i += 2;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        addLiteral(segments, literal);
+        return new PathTemplate(segments, dateConversions);
+    }
+
+    private static void addLiteral(List<Segment> segments, StringBuilder literal) {
+        if (literal.length() > 0) {
+            segments.add(new LiteralSegment(literal.toString()));
+            literal.setLength(0);
+        }
+    }
+
+    /*
+     * Conversions below the second, or showing the epoch millis, change with every message.
+     */
+    private static long bucketMillisOf(char conversion) {
+        switch (conversion) {
+            case 'L':
+            case 'N':
+            case 'Q':
+                return 1L;
+            case 'S':
+            case 's':
+            case 'T':
+            case 'r':
+            case 'c':
+                return SECOND_MILLIS;
+            default:
+                return MINUTE_MILLIS;
+        }
+    }
+
+    public String render(Message message) {
+        String[] dateParts = dateConversions.length > 0 ? getDateParts(message.getTimestamp().getMillis()) : null;
+        StringBuilder sb = buffer.get();
+        sb.setLength(0);
+        for (Segment segment : segments) {
+            segment.appendTo(sb, message, dateParts);
+        }
+        return sb.toString();
+    }
+
+    private String[] getDateParts(long timestamp) {
+        long bucket = bucketMillis > 1 ? timestamp - ((timestamp % bucketMillis) + bucketMillis) % bucketMillis : timestamp;
+        DateParts cached = cachedDateParts;
+        if (cached != null && cached.bucket == bucket) {
+            return cached.parts;
+        }
+        Date date = new Date(timestamp);
+        String[] parts = new String[dateConversions.length];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = String.format("%1$t" + dateConversions[i], date);
+        }
+        cachedDateParts = new DateParts(bucket, parts);
+        return parts;
+    }
+
+    private static class DateParts {
+        private final long bucket;
+        private final String[] parts;
+
+        DateParts(long bucket, String[] parts) {
+            this.bucket = bucket;
+            this.parts = parts;
+        }
+    }
+
+    private interface Segment {
+        void appendTo(StringBuilder sb, Message message, String[] dateParts);
+    }
+
+    private static class LiteralSegment implements Segment {
+        private final String text;
+
+        LiteralSegment(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void appendTo(StringBuilder sb, Message message, String[] dateParts) {
+            sb.append(text);
+        }
+    }
+
+    private static class FieldSegment implements Segment {
+        private final String name;
+
+        FieldSegment(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void appendTo(StringBuilder sb, Message message, String[] dateParts) {
+            Object value = message.getField(name);
+            if (value != null) {
+                sb.append(value);
+            } else {
+                sb.append("${").append(name).append('}');
+            }
+        }
+    }
+
+    private static class DateSegment implements Segment {
+        private final int index;
+
+        DateSegment(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void appendTo(StringBuilder sb, Message message, String[] dateParts) {
+            sb.append(dateParts[index]);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.graylog.outputs.hdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Data of a batch which is written to one HDFS file.
+ */
+public interface Payload {
+
+    void writeTo(OutputStream out) throws IOException;
+
+    int size();
+
+    /**
+     * Number of records in the data, messages or Parquet rows, used to roll files by message count.
+     */
+    int getRecordCount();
+}
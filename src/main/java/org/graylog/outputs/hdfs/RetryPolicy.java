@@ -0,0 +1,121 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.security.authentication.client.AuthenticationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries failed HDFS writes with exponential backoff and full jitter, so writers recovering
+ * from the same outage don't retry in lock step. Only failures classified as retryable are
+ * retried and counted against the circuit breaker. While the breaker is open, writes fail
+ * right away with {@link CircuitOpenException}.
+ */
+public class RetryPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    public interface Write {
+        void run() throws IOException, AuthenticationException;
+    }
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final CircuitBreaker circuitBreaker;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final Map<FailureType, AtomicLong> failures = new EnumMap<>(FailureType.class);
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, CircuitBreaker circuitBreaker) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.circuitBreaker = circuitBreaker;
+        for (FailureType type : FailureType.values()) {
+            failures.put(type, new AtomicLong());
+        }
+    }
+
+    public void execute(String path, Write write) throws IOException, AuthenticationException {
+        for (int attempt = 1; ; attempt++) {
+            if (!circuitBreaker.allowRequest()) {
+                throw new CircuitOpenException("Circuit breaker is open, not writing to " + path
+                        + " for another " + circuitBreaker.getRemainingOpenTime() + " ms");
+            }
+            try {
+                write.run();
+                circuitBreaker.recordSuccess();
+                return;
+            } catch (IOException | AuthenticationException e) {
+                FailureType type = FailureType.of(e);
+                failures.get(type).incrementAndGet();
+                if (!type.isRetryable()) {
+                    // the cluster answered, so the breaker isn't touched, but a probe must be released
+                    circuitBreaker.recordSuccess();
+                    throw e;
+                }
+                circuitBreaker.recordFailure();
+                if (attempt >= maxAttempts || circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+                    throw e;
+                }
+                long delay = getDelay(attempt);
+                LOG.debug("{} writing to {}, retrying in {} ms: {}", type, path, delay, e.getMessage());
+                retries.incrementAndGet();
+                sleep(delay);
+            }
+        }
+    }
+
+    /*
+     * Full jitter: a random delay between 0 and the exponential backoff of the attempt.
+     */
+    private long getDelay(int attempt) {
+        long backoff = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        return backoff > 0 ? ThreadLocalRandom.current().nextLong(backoff + 1) : 0;
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Number of retried writes.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Number of failed write attempts of the given type.
+     */
+    public long getFailures(FailureType type) {
+        return failures.get(type).get();
+    }
+
+    /**
+     * Thrown instead of writing while the circuit breaker is open.
+     */
+    public static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+}
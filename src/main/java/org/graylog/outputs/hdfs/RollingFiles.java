@@ -0,0 +1,237 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.WebHDFSConnection;
+import org.apache.hadoop.security.authentication.client.AuthenticationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Splits the data of each file path into parts which are rolled over once they reach a
+ * maximum size, age or number of records. A part is written to a hidden in-progress file next
+ * to it, <code>_app.1444444444123.log.inprogress</code> for <code>app.log</code>, and renamed
+ * to <code>app.1444444444123.log</code> when it is rolled, so readers only ever see complete
+ * parts. The number is the time the part was started.
+ * <p/>
+ * Parts which are still in progress when the output is stopped are finished. Parts left in
+ * progress by a crash stay where they are.
+ */
+public class RollingFiles {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RollingFiles.class);
+
+    private static final String IN_PROGRESS_PREFIX = "_";
+    private static final String IN_PROGRESS_SUFFIX = ".inprogress";
+
+    /**
+     * Writes to the files, creating them if needed.
+     */
+    public interface Target {
+        void write(String path, Payload data) throws IOException, AuthenticationException;
+
+        /**
+         * Completes any upload still open to the file.
+         */
+        void close(String path) throws IOException;
+    }
+
+    private final WebHDFSConnection hdfsConnection;
+    private final Target target;
+    private final long maxBytes;
+    private final long maxAgeInMillis;
+    private final long maxRecords;
+    private final ConcurrentMap<String, Part> parts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> inProgressPaths = new ConcurrentHashMap<>();
+    private final Set<Part> pendingRenames = Collections.newSetFromMap(new ConcurrentHashMap<Part, Boolean>());
+
+    public RollingFiles(WebHDFSConnection hdfsConnection, Target target, long maxBytes, long maxAgeInMillis,
+                        long maxRecords) {
+        this.hdfsConnection = hdfsConnection;
+        this.target = target;
+        this.maxBytes = maxBytes;
+        this.maxAgeInMillis = maxAgeInMillis;
+        this.maxRecords = maxRecords;
+    }
+
+    public void write(String path, Payload data) throws IOException, AuthenticationException {
+        Part part = getPart(path);
+        synchronized (part) {
+            if (part.removed) {
+                // dropped by rollExpired in the meantime
+                write(path, data);
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (part.isStarted() && maxAgeInMillis > 0 && now - part.startedAt >= maxAgeInMillis) {
+                finish(part);
+            }
+            if (!part.isStarted()) {
+                part.start(now);
+                inProgressPaths.put(part.inProgressPath, path);
+            }
+
+            target.write(part.inProgressPath, data);
+            part.bytes += data.size();
+            part.records += data.getRecordCount();
+
+            if ((maxBytes > 0 && part.bytes >= maxBytes) || (maxRecords > 0 && part.records >= maxRecords)) {
+                finish(part);
+            }
+        }
+    }
+
+    /**
+     * Finishes the parts which reached their maximum age without being written to, forgets
+     * paths without a part in progress and retries failed renames.
+     */
+    public void rollExpired() {
+        long now = System.currentTimeMillis();
+        for (Part part : parts.values()) {
+            synchronized (part) {
+                if (part.isStarted() && maxAgeInMillis > 0 && now - part.startedAt >= maxAgeInMillis) {
+                    finish(part);
+                } else if (!part.isStarted() && now - part.lastStartedAt >= maxAgeInMillis) {
+                    part.removed = true;
+                    parts.remove(part.path, part);
+                }
+            }
+        }
+        retryRenames();
+    }
+
+    public void finishAll() {
+        for (Part part : parts.values()) {
+            synchronized (part) {
+                if (part.isStarted()) {
+                    finish(part);
+                }
+            }
+        }
+        retryRenames();
+    }
+
+    private Part getPart(String path) {
+        Part part = parts.get(path);
+        if (part == null) {
+            Part newPart = new Part(path);
+            part = parts.putIfAbsent(path, newPart);
+            if (part == null) {
+                part = newPart;
+            }
+        }
+        return part;
+    }
+
+    /*
+     * Completes the upload of the part and renames it. A failed rename is retried by the next
+     * rollExpired, the next part of the path starts right away either way.
+     */
+    private void finish(Part part) {
+        Part finished = part.copy();
+        part.reset();
+        try {
+            target.close(finished.inProgressPath);
+        } catch (IOException e) {
+            LOG.warn("Exception while completing " + finished.inProgressPath, e);
+        }
+        inProgressPaths.remove(finished.inProgressPath);
+        if (!rename(finished)) {
+            pendingRenames.add(finished);
+        }
+    }
+
+    private void retryRenames() {
+        Iterator<Part> it = pendingRenames.iterator();
+        while (it.hasNext()) {
+            if (rename(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean rename(Part part) {
+        try {
+            String result = hdfsConnection.rename(part.inProgressPath, part.finalPath);
+            if (result != null && result.contains("true")) {
+                LOG.debug("Rolled {} ({} bytes)", part.finalPath, part.bytes);
+                return true;
+            }
+            LOG.warn("Unable to rename {} to {}: {}", part.inProgressPath, part.finalPath, result);
+        } catch (IOException | AuthenticationException e) {
+            LOG.warn("Exception while renaming " + part.inProgressPath + " to " + part.finalPath, e);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the file path a part in progress belongs to, or the given path if it isn't one.
+     */
+    public String getPath(String partPath) {
+        String path = inProgressPaths.get(partPath);
+        return path != null ? path : partPath;
+    }
+
+    /**
+     * Number of finished parts waiting to be renamed.
+     */
+    public int getPendingRenames() {
+        return pendingRenames.size();
+    }
+
+    private static class Part {
+        private final String path;
+        private String inProgressPath;
+        private String finalPath;
+        private long startedAt;
+        private long lastStartedAt;
+        private long bytes;
+        private long records;
+        private boolean removed;
+
+        Part(String path) {
+            this.path = path;
+        }
+
+        boolean isStarted() {
+            return inProgressPath != null;
+        }
+
+        void start(long now) {
+            // part names must not repeat when parts are rolled within the same millisecond
+            startedAt = Math.max(now, lastStartedAt + 1);
+            lastStartedAt = startedAt;
+            int slash = path.lastIndexOf('/');
+            String dir = path.substring(0, slash + 1);
+            String name = path.substring(slash + 1);
+            int dot = name.lastIndexOf('.');
+            String partName = dot > 0
+                    ? name.substring(0, dot) + "." + startedAt + name.substring(dot)
+                    : name + "." + startedAt;
+            finalPath = dir + partName;
+            inProgressPath = dir + IN_PROGRESS_PREFIX + partName + IN_PROGRESS_SUFFIX;
+            bytes = 0;
+            records = 0;
+        }
+
+        Part copy() {
+            Part copy = new Part(path);
+            copy.inProgressPath = inProgressPath;
+            copy.finalPath = finalPath;
+            copy.startedAt = startedAt;
+            copy.bytes = bytes;
+            copy.records = records;
+            return copy;
+        }
+
+        void reset() {
+            inProgressPath = null;
+            finalPath = null;
+        }
+    }
+}
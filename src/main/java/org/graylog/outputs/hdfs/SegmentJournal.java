@@ -0,0 +1,378 @@
+package org.graylog.outputs.hdfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for batches which could not be written to HDFS, stored in memory-mapped,
+ * append-only segment files in a local directory.
+ * <p/>
+ * Segment layout: an 8 byte header holding a magic number and the offset up to which records
+ * were replayed, followed by records of
+ * <pre>
+ * int length | int path length | int record count | path (UTF-8) | data | int CRC32 of record count, path and data
+ * </pre>
+ * where length counts the bytes after the length field. The length is written last, so a
+ * record torn by a crash reads as the end of the segment. Segments are deleted once all of
+ * their records were replayed, and are picked up again after a restart.
+ */
+public class SegmentJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentJournal.class);
+
+    private static final int MAGIC = 0x57484a32;
+    private static final int HEADER_SIZE = 8;
+    private static final int REPLAY_OFFSET = 4;
+    private static final int RECORD_OVERHEAD = 16;
+    private static final int CRC_CHUNK_SIZE = 64 * 1024;
+    private static final String SUFFIX = ".segment";
+
+    private final File directory;
+    private final int segmentSize;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSequence;
+
+    public SegmentJournal(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                try {
+                    // taken even if the segment is unreadable, so it isn't overwritten by a new one
+                    nextSequence = Math.max(nextSequence, Segment.sequence(file) + 1);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Skipping journal segment with unexpected name {}", file);
+                    continue;
+                }
+                Segment segment;
+                try {
+                    segment = Segment.open(file);
+                } catch (IOException e) {
+                    LOG.warn("Skipping unreadable journal segment " + file, e);
+                    continue;
+                }
+                if (segment.isReplayed()) {
+                    segment.delete();
+                } else {
+                    segments.add(segment);
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            LOG.info("Found {} journal segments with batches to replay in {}", segments.size(), directory);
+        }
+    }
+
+    /**
+     * Appends a batch to the journal and forces it to disk.
+     */
+    public synchronized void append(String path, Utf8Buffer data) throws IOException {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_OVERHEAD + pathBytes.length + data.size();
+
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.sealed || segment.remaining() < recordSize) {
+            if (segment != null) {
+                segment.sealed = true;
+            }
+            segment = Segment.create(new File(directory, String.format("%020d", nextSequence++) + SUFFIX),
+                    Math.max(segmentSize, HEADER_SIZE + recordSize + 4));
+            segments.add(segment);
+        }
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = segment.writePosition;
+        buffer.position(offset + 4);
+        buffer.putInt(pathBytes.length);
+        buffer.putInt(data.getRecordCount());
+        buffer.put(pathBytes);
+        buffer.put(data.array(), 0, data.size());
+
+        CRC32 crc = new CRC32();
+        crc.update(toBytes(data.getRecordCount()));
+        crc.update(pathBytes);
+        crc.update(data.array(), 0, data.size());
+
+        buffer.putInt((int) crc.getValue());
+        segment.buffer.putInt(offset, recordSize - 4);
+        segment.writePosition = offset + recordSize;
+        segment.buffer.force();
+    }
+
+    /**
+     * Appends a batch only if the journal still holds batches to replay, atomically with the
+     * acknowledgements of the replay, so the batch is replayed behind them.
+     *
+     * @return false without appending the batch if the journal is empty
+     */
+    public synchronized boolean appendIfNotEmpty(String path, Utf8Buffer data) throws IOException {
+        if (isEmpty()) {
+            return false;
+        }
+        append(path, data);
+        return true;
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isReplayed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Receives the batches read back from the journal.
+     */
+    public interface Replayer {
+        void replay(String path, Payload data) throws Exception;
+    }
+
+    /**
+     * Hands the journaled batches to the replayer, oldest first. A batch is acknowledged once
+     * the replayer returned; replay stops at the first batch it fails on, which is handed out
+     * again by the next call. Records failing their CRC check are skipped.
+     *
+     * @return number of batches replayed
+     */
+    public int replay(Replayer replayer) throws Exception {
+        int replayed = 0;
+        Record record;
+        while ((record = nextRecord()) != null) {
+            if (record.isValid()) {
+                replayer.replay(record.path, record);
+                replayed++;
+            } else {
+                LOG.warn("Skipping corrupt journal record at offset {} of {}", record.offset, record.segment.file);
+            }
+            acknowledge(record);
+        }
+        return replayed;
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            try {
+                segment.raf.close();
+            } catch (IOException e) {
+                LOG.debug("Exception while closing journal segment " + segment.file, e);
+            }
+        }
+        segments.clear();
+    }
+
+    private synchronized Record nextRecord() throws IOException {
+        while (!segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            int offset = segment.getReplayPosition();
+            if (offset < segment.writePosition) {
+                return Record.read(segment, offset);
+            }
+            if (!segment.sealed && segment == segments.peekLast()) {
+                return null;
+            }
+            segments.removeFirst();
+            segment.delete();
+        }
+        return null;
+    }
+
+    private synchronized void acknowledge(Record record) throws IOException {
+        Segment segment = record.segment;
+        segment.setReplayPosition(record.offset + 4 + record.length);
+        if (segment.isReplayed() && segment.sealed && segments.peekFirst() == segment) {
+            segments.removeFirst();
+            segment.delete();
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private boolean sealed;
+
+        private Segment(File file, RandomAccessFile raf, int size) throws IOException {
+            this.file = file;
+            this.raf = raf;
+            this.channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        static long sequence(File file) {
+            String name = file.getName();
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            Segment segment = new Segment(file, raf, size);
+            segment.buffer.putInt(0, MAGIC);
+            segment.buffer.putInt(REPLAY_OFFSET, HEADER_SIZE);
+            segment.writePosition = HEADER_SIZE;
+            return segment;
+        }
+
+        /*
+         * Segments found on startup are sealed, new batches go to a new segment.
+         */
+        static Segment open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            Segment segment = new Segment(file, raf, (int) raf.length());
+            if (raf.length() < HEADER_SIZE || segment.buffer.getInt(0) != MAGIC) {
+                raf.close();
+                throw new IOException("Not a journal segment: " + file);
+            }
+            int position = HEADER_SIZE;
+            int capacity = segment.buffer.capacity();
+            while (position + 4 <= capacity) {
+                int length = segment.buffer.getInt(position);
+                if (length < RECORD_OVERHEAD - 4 || position + 4 + length > capacity) {
+                    break;
+                }
+                position += 4 + length;
+            }
+            segment.writePosition = position;
+            segment.sealed = true;
+            return segment;
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition - 4;
+        }
+
+        int getReplayPosition() {
+            return buffer.getInt(REPLAY_OFFSET);
+        }
+
+        void setReplayPosition(int position) {
+            buffer.putInt(REPLAY_OFFSET, position);
+            buffer.force();
+        }
+
+        boolean isReplayed() {
+            return getReplayPosition() >= writePosition;
+        }
+
+        void delete() throws IOException {
+            raf.close();
+            if (!file.delete()) {
+                LOG.warn("Unable to delete replayed journal segment {}", file);
+            }
+        }
+    }
+
+    /*
+     * A journaled batch. Its data is transferred from the segment file to the upload stream
+     * through the file channel, without copying it onto the heap.
+     */
+    private static class Record implements Payload {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final String path;
+        private final int dataPosition;
+        private final int dataSize;
+        private final int pathPosition;
+        private final int recordCount;
+        private final int crc;
+
+        private Record(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = segment.buffer.getInt(offset);
+            int pathLength = segment.buffer.getInt(offset + 4);
+            this.recordCount = segment.buffer.getInt(offset + 8);
+            this.pathPosition = offset + 12;
+            if (pathLength < 0 || pathLength > length - 12) {
+                // corrupt path length, fails the CRC check below
+                pathLength = 0;
+            }
+            byte[] pathBytes = new byte[pathLength];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(pathPosition);
+            buffer.get(pathBytes);
+            this.path = new String(pathBytes, StandardCharsets.UTF_8);
+            this.dataPosition = pathPosition + pathLength;
+            this.dataSize = length - 12 - pathLength;
+            this.crc = segment.buffer.getInt(dataPosition + dataSize);
+        }
+
+        static Record read(Segment segment, int offset) {
+            return new Record(segment, offset);
+        }
+
+        boolean isValid() {
+            CRC32 checksum = new CRC32();
+            // the checksum starts at the record count, which precedes the path
+            int remaining = dataPosition + dataSize - (pathPosition - 4);
+            byte[] chunk = new byte[Math.min(CRC_CHUNK_SIZE, remaining)];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(pathPosition - 4);
+            while (remaining > 0) {
+                int n = Math.min(chunk.length, remaining);
+                buffer.get(chunk, 0, n);
+                checksum.update(chunk, 0, n);
+                remaining -= n;
+            }
+            return (int) checksum.getValue() == crc;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = dataPosition;
+            long remaining = dataSize;
+            while (remaining > 0) {
+                long n = segment.channel.transferTo(position, remaining, target);
+                position += n;
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public int size() {
+            return dataSize;
+        }
+
+        @Override
+        public int getRecordCount() {
+            return recordCount;
+        }
+    }
+}
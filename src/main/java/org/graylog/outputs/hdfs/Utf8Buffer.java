@@ -0,0 +1,186 @@
+package org.graylog.outputs.hdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer which encodes appended characters as UTF-8, without going through
+ * an intermediate String or byte[]. Also counts the records it holds, which callers add with
+ * {@link #addRecords(int)} as they complete them. Not thread safe.
+ */
+public class Utf8Buffer implements Payload, Appendable {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private byte[] buf;
+    private int count;
+    private int records;
+
+    public Utf8Buffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public Utf8Buffer(int initialCapacity) {
+        buf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /*
+     * Wraps the first count bytes of buf without copying them.
+     */
+    Utf8Buffer(byte[] buf, int count, int records) {
+        this.buf = buf;
+        this.count = count;
+        this.records = records;
+    }
+
+    public Utf8Buffer append(CharSequence chars) {
+        return append(chars, 0, chars.length());
+    }
+
+    public Utf8Buffer append(CharSequence chars, int start, int end) {
+        ensureCapacity(count + (end - start));
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                if (count == buf.length) {
+                    ensureCapacity(count + 1 + (end - i));
+                }
+                buf[count++] = (byte) c;
+            } else {
+                i = appendMultiByte(chars, i, end);
+            }
+        }
+        return this;
+    }
+
+    public Utf8Buffer append(char c) {
+        if (c < 0x80) {
+            ensureCapacity(count + 1);
+            buf[count++] = (byte) c;
+            return this;
+        }
+        appendMultiByte(String.valueOf(c), 0, 1);
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of the value, same as {@link Long#toString(long)}.
+     */
+    public Utf8Buffer append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(count + digits);
+        for (int i = count + digits - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+        return this;
+    }
+
+    /**
+     * Appends the low eight bits of the value as a single byte.
+     */
+    public Utf8Buffer appendByte(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+        return this;
+    }
+
+    public Utf8Buffer append(byte[] bytes, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(bytes, off, buf, count, len);
+        count += len;
+        return this;
+    }
+
+    /**
+     * Appends the bytes and records of the other buffer.
+     */
+    public Utf8Buffer append(Utf8Buffer other) {
+        records += other.records;
+        return append(other.buf, 0, other.count);
+    }
+
+    public void addRecords(int n) {
+        records += n;
+    }
+
+    /*
+     * Encodes the non ASCII character at index i and returns the index of the last char consumed.
+     */
+    private int appendMultiByte(CharSequence chars, int i, int end) {
+        ensureCapacity(count + 4);
+        char c = chars.charAt(i);
+        if (c < 0x800) {
+            buf[count++] = (byte) (0xc0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, chars.charAt(i + 1));
+            buf[count++] = (byte) (0xf0 | (codePoint >> 18));
+            buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate, replaced like String.getBytes does
+            buf[count++] = (byte) '?';
+        } else {
+            buf[count++] = (byte) (0xe0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > buf.length) {
+            int newCapacity = Math.max(buf.length << 1, minCapacity);
+            buf = Arrays.copyOf(buf, newCapacity);
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int getRecordCount() {
+        return records;
+    }
+
+    public boolean endsWith(char c) {
+        return c < 0x80 && count > 0 && buf[count - 1] == (byte) c;
+    }
+
+    public void reset() {
+        count = 0;
+        records = 0;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, StandardCharsets.UTF_8);
+    }
+}
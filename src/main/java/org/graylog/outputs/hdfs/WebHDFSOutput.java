@@ -1,14 +1,28 @@
 package org.graylog.outputs.hdfs;
 
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.inject.assistedinject.Assisted;
-import org.apache.commons.lang.text.StrSubstitutor;
 import org.apache.hadoop.fs.http.client.AuthenticationType;
+import org.apache.hadoop.fs.http.client.PoolStats;
+import org.apache.hadoop.fs.http.client.PooledHttpTransport;
+import org.apache.hadoop.fs.http.client.RequestListener;
 import org.apache.hadoop.fs.http.client.WebHDFSConnection;
 import org.apache.hadoop.security.authentication.client.AuthenticationException;
+import org.graylog.outputs.hdfs.avro.AvroContainer;
+import org.graylog.outputs.hdfs.parquet.ParquetFiles;
+import org.graylog.outputs.hdfs.parquet.ParquetSchema;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
 import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.outputs.MessageOutput;
@@ -18,16 +32,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
-import java.io.ByteArrayInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class WebHDFSOutput implements MessageOutput {
 
     private static final Logger LOG = LoggerFactory.getLogger(WebHDFSOutput.class);
 
+    // several outputs can write the same stream, each registers its metrics under its own number
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
     private static final String CK_HDFS_HOST_NAME = "HDFS_HOST_NAME";
     private static final String CK_HDFS_PORT = "HDFS_PORT";
     private static final String CK_FILE = "FILE";
@@ -37,23 +67,137 @@ public class WebHDFSOutput implements MessageOutput {
     private static final String CK_APPEND = "APPEND";
     private static final String CK_REOPEN = "REOPEN";
     private static final String CK_USERNAME = "USER_NAME";
+    private static final String CK_POOL_SIZE = "POOL_SIZE";
+    private static final String CK_POOL_IDLE_TIMEOUT = "POOL_IDLE_TIMEOUT";
+    private static final String CK_BUFFER_SIZE = "BUFFER_SIZE";
+    private static final String CK_FLUSH_FILE_SIZE = "FLUSH_FILE_SIZE";
+    private static final String CK_FLUSH_TOTAL_SIZE = "FLUSH_TOTAL_SIZE";
+    private static final String CK_FLUSH_MESSAGE_COUNT = "FLUSH_MESSAGE_COUNT";
+    private static final String CK_MEMORY_LIMIT = "MEMORY_LIMIT";
+    private static final String CK_OVERFLOW_POLICY = "OVERFLOW_POLICY";
+    private static final String CK_SPILL_DIRECTORY = "SPILL_DIRECTORY";
+    private static final String CK_SPILL_ON_FAILURE = "SPILL_ON_FAILURE";
+    private static final String CK_SEGMENT_SIZE = "SEGMENT_SIZE";
+    private static final String CK_RETRY_ATTEMPTS = "RETRY_ATTEMPTS";
+    private static final String CK_RETRY_BACKOFF = "RETRY_BACKOFF";
+    private static final String CK_BREAKER_THRESHOLD = "BREAKER_THRESHOLD";
+    private static final String CK_BREAKER_OPEN_TIME = "BREAKER_OPEN_TIME";
+    private static final String CK_CONNECT_TIMEOUT = "CONNECT_TIMEOUT";
+    private static final String CK_READ_TIMEOUT = "READ_TIMEOUT";
+    private static final String CK_FLUSH_PARALLELISM = "FLUSH_PARALLELISM";
+    private static final String CK_KNOWN_FILES = "KNOWN_FILES";
+    private static final String CK_ROLL_SIZE = "ROLL_SIZE";
+    private static final String CK_ROLL_INTERVAL = "ROLL_INTERVAL";
+    private static final String CK_ROLL_MESSAGE_COUNT = "ROLL_MESSAGE_COUNT";
+    private static final String CK_COMPRESSION = "COMPRESSION";
+    private static final String CK_COMPRESSION_LEVEL = "COMPRESSION_LEVEL";
+    private static final String CK_STOP_TIMEOUT = "STOP_TIMEOUT";
+    private static final String CK_OUTPUT_FORMAT = "OUTPUT_FORMAT";
+    private static final String CK_JSON_INCLUDE_FIELDS = "JSON_INCLUDE_FIELDS";
+    private static final String CK_JSON_EXCLUDE_FIELDS = "JSON_EXCLUDE_FIELDS";
+    private static final String CK_PARQUET_SCHEMA = "PARQUET_SCHEMA";
+    private static final String CK_PARQUET_ROW_GROUP_SIZE = "PARQUET_ROW_GROUP_SIZE";
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final int DEFAULT_MEMORY_LIMIT = 128;
+    private static final int DEFAULT_SEGMENT_SIZE = 64;
+    private static final long FULL_BUFFER_PARK_NANOS = 100000L;
+    private static final long REPLAY_INTERVAL_MILLIS = 5000L;
+    private static final int DEFAULT_RETRY_ATTEMPTS = 3;
+    private static final int DEFAULT_RETRY_BACKOFF = 500;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000L;
+    private static final int DEFAULT_BREAKER_THRESHOLD = 5;
+    private static final int DEFAULT_BREAKER_OPEN_TIME = 5;
+    private static final long MAX_BREAKER_OPEN_MILLIS = 60000L;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10;
+    private static final int DEFAULT_READ_TIMEOUT = 60;
+    private static final int DEFAULT_FLUSH_PARALLELISM = 4;
+    private static final int DEFAULT_STOP_TIMEOUT = 30;
+    private static final int DEFAULT_PARQUET_ROW_GROUP_SIZE = 16;
+    private static final int DEFAULT_PARQUET_FLUSH_INTERVAL = 60;
+
+    private static final int MAX_RETAINED_MESSAGE_BUFFER = 1024 * 1024;
 
-    private static final String FIELD_SEPARATOR = " | ";
     private Configuration configuration;
     private AtomicBoolean isRunning = new AtomicBoolean(false);
-    private String fileToWrite;
-    private String messageFormat;
+    private PathTemplate pathTemplate;
+    private String pathSuffix;
+    private Compression compression;
+    private int compressionLevel;
+    private MessageFormatter messageFormatter;
+    private OutputFormat outputFormat;
+    private ParquetFiles parquetFiles;
+    private AvroContainer avroContainer;
+    private JsonLinesFormatter jsonFormatter;
+    private final List<ParquetFiles.FinishedFile> pendingParquetFiles = new ArrayList<>();
+    private final ThreadLocal<Utf8Buffer> messageBuffer = new ThreadLocal<Utf8Buffer>() {
+        @Override
+        protected Utf8Buffer initialValue() {
+            return new Utf8Buffer(1024);
+        }
+    };
     private long flushIntervalInMillis;
     //private boolean append;
-    private Timer flushTimer;
-    private TimerTask flushTask;
+    private long stopTimeoutInMillis;
+    private ScheduledExecutorService flushScheduler;
+    private ScheduledFuture<?> flushTask;
+    private ScheduledFuture<?> closeTask;
+    private ScheduledFuture<?> rollTask;
+    private RollingFiles rollingFiles;
+    private AppendSessions appendSessions;
     private WebHDFSConnection hdfsConnection;
-    private List<MessageData> messagesToWrite;
+    private RetryPolicy retryPolicy;
+    private KnownFiles knownFiles;
+    private ExecutorService flushExecutor;
+    private int bufferSize;
+    private long flushFileSize;
+    private long flushTotalSize;
+    private int flushMessageCount;
+    private long memoryLimit;
+    private OverflowPolicy overflowPolicy;
+    private SegmentJournal journal;
+    private boolean spillOnFailure;
+    private ScheduledExecutorService replayScheduler;
+    private final PathBuffers pathBuffers = new PathBuffers();
+    private final Map<String, Utf8Buffer> pendingBatch = new LinkedHashMap<>();
+    private final Map<String, Utf8Buffer> recoveredBatches = new LinkedHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    private final AtomicLong blockedWrites = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong droppedBatches = new AtomicLong();
+    private final AtomicLong spilledBatches = new AtomicLong();
+
+    private final MetricRegistry metricRegistry;
+    private final String metricPrefix;
+    private final List<String> metricNames = new ArrayList<>();
+    private final Meter messagesMeter;
+    private final Meter uploadedBytesMeter;
+    private final Meter writeErrorsMeter;
+    private final Timer formatTimer;
+    private final Timer flushTimer;
+    private final Timer nameNodeTimer;
+    private final Timer dataNodeTimer;
+    private final Histogram batchSizeHistogram;
+    private long reportedDroppedMessages;
 
     @Inject
-    public WebHDFSOutput(@Assisted Stream stream, @Assisted Configuration configuration)
+    public WebHDFSOutput(@Assisted Stream stream, @Assisted Configuration configuration, MetricRegistry metricRegistry)
             throws MessageOutputConfigurationException, IOException {
         this.configuration = configuration;
+        this.metricRegistry = metricRegistry;
+        this.metricPrefix = MetricRegistry.name(WebHDFSOutput.class, stream.getId(),
+                String.valueOf(INSTANCES.incrementAndGet()));
+        // registered once the output is launched, so a rejected configuration leaves no metrics behind
+        messagesMeter = new Meter();
+        uploadedBytesMeter = new Meter();
+        writeErrorsMeter = new Meter();
+        formatTimer = new Timer();
+        flushTimer = new Timer();
+        nameNodeTimer = new Timer();
+        dataNodeTimer = new Timer();
+        batchSizeHistogram = new Histogram(new ExponentiallyDecayingReservoir());
 
         LOG.info("WebHDFSOutput launching...");
 
@@ -61,54 +205,582 @@ public class WebHDFSOutput implements MessageOutput {
         int port = configuration.getInt(CK_HDFS_PORT);
         String username = configuration.getString(CK_USERNAME);
 
+        int poolSize = getInt(configuration, CK_POOL_SIZE, PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        long poolIdleTimeoutInMillis = getInt(configuration, CK_POOL_IDLE_TIMEOUT, 60) * 1000L;
+
         hdfsConnection = new WebHDFSConnection("http://" + hostname + ":" + port, username, "anything",
-                AuthenticationType.PSEUDO);
+                AuthenticationType.PSEUDO, new PooledHttpTransport(poolSize, poolIdleTimeoutInMillis));
+        hdfsConnection.setTimeouts(getInt(configuration, CK_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT) * 1000,
+                getInt(configuration, CK_READ_TIMEOUT, DEFAULT_READ_TIMEOUT) * 1000);
+        hdfsConnection.setRequestListener(new RequestListener() {
+            @Override
+            public void nameNodeRequest(long nanos) {
+                nameNodeTimer.update(nanos, TimeUnit.NANOSECONDS);
+            }
 
-        messagesToWrite = new LinkedList<>();
+            @Override
+            public void dataNodeUpload(long nanos, long bytes) {
+                dataNodeTimer.update(nanos, TimeUnit.NANOSECONDS);
+                uploadedBytesMeter.mark(bytes);
+            }
+        });
 
+        CircuitBreaker circuitBreaker = new CircuitBreaker(
+                getInt(configuration, CK_BREAKER_THRESHOLD, DEFAULT_BREAKER_THRESHOLD),
+                getInt(configuration, CK_BREAKER_OPEN_TIME, DEFAULT_BREAKER_OPEN_TIME) * 1000L,
+                MAX_BREAKER_OPEN_MILLIS);
+        retryPolicy = new RetryPolicy(getInt(configuration, CK_RETRY_ATTEMPTS, DEFAULT_RETRY_ATTEMPTS),
+                getInt(configuration, CK_RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF), MAX_RETRY_DELAY_MILLIS, circuitBreaker);
 
-        fileToWrite = configuration.getString(CK_FILE);
-        if(fileToWrite.contains("%")) {
-            fileToWrite = fileToWrite.replaceAll("%","%1\\$t");
+        bufferSize = getInt(configuration, CK_BUFFER_SIZE, DEFAULT_BUFFER_SIZE);
+        flushFileSize = getInt(configuration, CK_FLUSH_FILE_SIZE, 0) * 1024L;
+        flushTotalSize = getInt(configuration, CK_FLUSH_TOTAL_SIZE, 0) * 1024L;
+        flushMessageCount = getInt(configuration, CK_FLUSH_MESSAGE_COUNT, 0);
+
+        memoryLimit = getInt(configuration, CK_MEMORY_LIMIT, DEFAULT_MEMORY_LIMIT) * 1024L * 1024L;
+        overflowPolicy = OverflowPolicy.BLOCK;
+        if (configuration.stringIsSet(CK_OVERFLOW_POLICY)) {
+            try {
+                overflowPolicy = OverflowPolicy.valueOf(configuration.getString(CK_OVERFLOW_POLICY));
+            } catch (IllegalArgumentException e) {
+                throw new MessageOutputConfigurationException("Unknown overflow policy " +
+                        configuration.getString(CK_OVERFLOW_POLICY));
+            }
         }
-        messageFormat = configuration.getString(CK_MESSAGE_FORMAT);
+        spillOnFailure = configuration.getBoolean(CK_SPILL_ON_FAILURE);
+        if (overflowPolicy == OverflowPolicy.SPILL || spillOnFailure) {
+            String spillPath = configuration.getString(CK_SPILL_DIRECTORY);
+            if (spillPath == null || spillPath.isEmpty()) {
+                spillPath = new File(System.getProperty("java.io.tmpdir"), "webhdfs-spill-" + stream.getId()).getPath();
+            }
+            int segmentSize = Math.min(getInt(configuration, CK_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE), 1024) * 1024 * 1024;
+            journal = new SegmentJournal(new File(spillPath), segmentSize);
+        }
+
+        try {
+            pathTemplate = PathTemplate.compile(configuration.getString(CK_FILE));
+        } catch (IllegalArgumentException e) {
+            throw new MessageOutputConfigurationException("Invalid file path " + configuration.getString(CK_FILE)
+                    + ": " + e.getMessage());
+        }
+        compression = Compression.NONE;
+        if (configuration.stringIsSet(CK_COMPRESSION)) {
+            try {
+                compression = Compression.valueOf(configuration.getString(CK_COMPRESSION));
+            } catch (IllegalArgumentException e) {
+                throw new MessageOutputConfigurationException("Unknown compression " +
+                        configuration.getString(CK_COMPRESSION));
+            }
+        }
+        compressionLevel = getInt(configuration, CK_COMPRESSION_LEVEL, Compression.DEFAULT_LEVEL);
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new MessageOutputConfigurationException("Compression level must be between 0 and 9, or -1 for the default");
+        }
+        outputFormat = OutputFormat.TEXT;
+        if (configuration.stringIsSet(CK_OUTPUT_FORMAT)) {
+            try {
+                outputFormat = OutputFormat.valueOf(configuration.getString(CK_OUTPUT_FORMAT));
+            } catch (IllegalArgumentException e) {
+                throw new MessageOutputConfigurationException("Unknown output format " +
+                        configuration.getString(CK_OUTPUT_FORMAT));
+            }
+        }
+
+        messageFormatter = MessageFormatter.compile(configuration.getString(CK_MESSAGE_FORMAT));
         flushIntervalInMillis = configuration.getInt(CK_FLUSH_INTERVAL) * 1000;
 
+        long rollSize = getInt(configuration, CK_ROLL_SIZE, 0) * 1024L * 1024L;
+        long rollIntervalInMillis = getInt(configuration, CK_ROLL_INTERVAL, 0) * 1000L;
+        int rollMessageCount = getInt(configuration, CK_ROLL_MESSAGE_COUNT, 0);
+
+        if ((outputFormat == OutputFormat.PARQUET || outputFormat == OutputFormat.AVRO)
+                && compression != Compression.NONE && compression != Compression.GZIP) {
+            throw new MessageOutputConfigurationException(outputFormat + " files only support gzip compression");
+        }
+        if (outputFormat == OutputFormat.PARQUET) {
+            ParquetSchema schema = null;
+            if (configuration.stringIsSet(CK_PARQUET_SCHEMA)) {
+                try {
+                    schema = ParquetSchema.parse(configuration.getString(CK_PARQUET_SCHEMA));
+                } catch (IllegalArgumentException e) {
+                    throw new MessageOutputConfigurationException("Invalid Parquet schema: " + e.getMessage());
+                }
+            }
+            // Parquet compresses its pages itself and its files can't be appended to
+            parquetFiles = new ParquetFiles(schema, compression == Compression.GZIP ? compressionLevel : null,
+                    getInt(configuration, CK_PARQUET_ROW_GROUP_SIZE, DEFAULT_PARQUET_ROW_GROUP_SIZE) * 1024L * 1024L,
+                    rollSize, rollIntervalInMillis, rollMessageCount);
+            compression = Compression.NONE;
+            if (flushIntervalInMillis == 0) {
+                flushIntervalInMillis = DEFAULT_PARQUET_FLUSH_INTERVAL * 1000L;
+            }
+        }
+        if (outputFormat == OutputFormat.JSON) {
+            jsonFormatter = new JsonLinesFormatter(configuration.getString(CK_JSON_INCLUDE_FIELDS),
+                    configuration.getString(CK_JSON_EXCLUDE_FIELDS));
+        }
+        if (outputFormat == OutputFormat.AVRO) {
+            // blocks are deflated by the container, so appends keep the file readable
+            avroContainer = new AvroContainer(compression == Compression.GZIP ? compressionLevel : null);
+            compression = Compression.NONE;
+        }
+        knownFiles = new KnownFiles(getInt(configuration, CK_KNOWN_FILES, KnownFiles.DEFAULT_CAPACITY),
+                avroContainer != null ? avroContainer.getHeader() : null);
+        // files get the extension of their format and codec, so readers detect them
+        String extension = outputFormat.getExtension() + compression.getExtension();
+        pathSuffix = configuration.getString(CK_FILE).endsWith(extension) ? "" : extension;
+
+        long closeIntervalInMillis = getInt(configuration, CK_CLOSE_INTERVAL, 0) * 1000L;
+        if (closeIntervalInMillis > 0 && parquetFiles == null) {
+            long reopenIntervalInMillis = getInt(configuration, CK_REOPEN, 3600) * 1000L;
+            // open streams hold their connections, one stays free for the requests of the name node
+            appendSessions = new AppendSessions(hdfsConnection, knownFiles, compression, compressionLevel,
+                    closeIntervalInMillis, reopenIntervalInMillis, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES,
+                    Math.max(1, poolSize - 1), createRecovery());
+        }
+
+        int flushParallelism = getInt(configuration, CK_FLUSH_PARALLELISM, DEFAULT_FLUSH_PARALLELISM);
+        if(flushIntervalInMillis > 0 && flushParallelism > 1) {
+            flushExecutor = Executors.newFixedThreadPool(flushParallelism, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "WebHDFS-Flush-Worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        if (parquetFiles != null) {
+            // every finished Parquet file is a part of its own
+            rollingFiles = new RollingFiles(hdfsConnection, createRollingTarget(), 1, 0, 0);
+        } else if (rollSize > 0 || rollIntervalInMillis > 0 || rollMessageCount > 0) {
+            rollingFiles = new RollingFiles(hdfsConnection, createRollingTarget(), rollSize, rollIntervalInMillis,
+                    rollMessageCount);
+        }
+
+        stopTimeoutInMillis = getInt(configuration, CK_STOP_TIMEOUT, DEFAULT_STOP_TIMEOUT) * 1000L;
+
+        // a single thread runs flushes, closes and rolls one after another, so they never overlap
+        if(flushIntervalInMillis > 0 || appendSessions != null || rollingFiles != null) {
+            flushScheduler = newScheduler("WebHDFS-Flush-Scheduler");
+        }
         if(flushIntervalInMillis > 0) {
-            flushTimer = new Timer("WebHDFS-Flush-Timer", true);
-            flushTask = createFlushTask();
-            flushTimer.schedule(flushTask, flushIntervalInMillis, flushIntervalInMillis);
+            flushTask = flushScheduler.scheduleWithFixedDelay(createFlushTask(), flushIntervalInMillis,
+                    flushIntervalInMillis, TimeUnit.MILLISECONDS);
+        }
+        if(appendSessions != null) {
+            long period = Math.max(1000L, closeIntervalInMillis / 2);
+            closeTask = flushScheduler.scheduleWithFixedDelay(createCloseTask(), period, period, TimeUnit.MILLISECONDS);
+        }
+        if(rollingFiles != null) {
+            long period = rollIntervalInMillis > 0 ? Math.max(1000L, rollIntervalInMillis / 10) : 60000L;
+            rollTask = flushScheduler.scheduleWithFixedDelay(createRollTask(), period, period, TimeUnit.MILLISECONDS);
         }
 
+        if(journal != null) {
+            replayScheduler = newScheduler("WebHDFS-Journal-Replayer");
+            replayScheduler.scheduleWithFixedDelay(createReplayTask(), REPLAY_INTERVAL_MILLIS, REPLAY_INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        registerMetrics();
+
         //append = configuration.getBoolean(CK_APPEND);
         isRunning.set(true);
         LOG.info("WebHDFSOutput launched");
     }
 
-    private TimerTask createFlushTask() {
-        return new TimerTask() {
+    /*
+     * Gauges read the state of the output when the metrics are reported, so the write path
+     * doesn't pay for them.
+     */
+    private void registerMetrics() {
+        registerMetric("messages", messagesMeter);
+        registerMetric("uploadedBytes", uploadedBytesMeter);
+        registerMetric("writeErrors", writeErrorsMeter);
+        registerMetric("formatTime", formatTimer);
+        registerMetric("flushTime", flushTimer);
+        registerMetric("nameNodeRedirectTime", nameNodeTimer);
+        registerMetric("dataNodeUploadTime", dataNodeTimer);
+        registerMetric("batchSize", batchSizeHistogram);
+        registerMetric("bufferedMessages", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getBufferedMessages();
+            }
+        });
+        registerMetric("bufferedBytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getBufferedBytes();
+            }
+        });
+        registerMetric("blockedWrites", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getBlockedWrites();
+            }
+        });
+        registerMetric("droppedMessages", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getDroppedMessages();
+            }
+        });
+        registerMetric("droppedBatches", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getDroppedBatches();
+            }
+        });
+        registerMetric("spilledBatches", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getSpilledBatches();
+            }
+        });
+        registerMetric("retries", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getRetries();
+            }
+        });
+        for (final FailureType type : FailureType.values()) {
+            registerMetric(MetricRegistry.name("failures", type.name().toLowerCase()), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return getFailures(type);
+                }
+            });
+        }
+        registerMetric("circuitBreaker.state", new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return getCircuitBreakerState().name();
+            }
+        });
+        registerMetric("circuitBreaker.openCount", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getCircuitBreakerOpenCount();
+            }
+        });
+        registerMetric("knownFileMisses", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getKnownFileMisses();
+            }
+        });
+        registerMetric("pool.leased", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return hdfsConnection.getPoolStats().getLeased();
+            }
+        });
+        registerMetric("pool.pending", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return hdfsConnection.getPoolStats().getPending();
+            }
+        });
+        registerMetric("pool.requests", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return hdfsConnection.getPoolStats().getRequests();
+            }
+        });
+        registerMetric("pool.reused", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return hdfsConnection.getPoolStats().getReused();
+            }
+        });
+        if (appendSessions != null) {
+            registerMetric("openAppendStreams", new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return appendSessions.size();
+                }
+            });
+            registerMetric("unconfirmedBytes", new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return appendSessions.getUnconfirmedBytes();
+                }
+            });
+        }
+        if (rollingFiles != null) {
+            registerMetric("pendingRenames", new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return rollingFiles.getPendingRenames();
+                }
+            });
+        }
+    }
+
+    private void registerMetric(String name, Metric metric) {
+        String fullName = MetricRegistry.name(metricPrefix, name);
+        metricRegistry.register(fullName, metric);
+        metricNames.add(fullName);
+    }
+
+    /*
+     * Removes only the metrics of this output, other outputs may use the same registry and stream.
+     */
+    private void removeMetrics() {
+        for (String name : metricNames) {
+            metricRegistry.remove(name);
+        }
+        metricNames.clear();
+    }
+
+    private RollingFiles.Target createRollingTarget() {
+        return new RollingFiles.Target() {
+            @Override
+            public void write(String path, Payload data) throws IOException, AuthenticationException {
+                writeToFile(path, data);
+            }
+
+            @Override
+            public void close(String path) throws IOException {
+                if (appendSessions != null) {
+                    appendSessions.close(path);
+                }
+            }
+        };
+    }
+
+    /*
+     * Data of failed append streams is queued here and written again by the next flush, or by
+     * the next run of the close task in immediate mode. Batches of rolling files go back to
+     * the file they belong to, not to the part which failed.
+     */
+    private AppendSessions.Recovery createRecovery() {
+        return new AppendSessions.Recovery() {
+            @Override
+            public void recover(String path, Utf8Buffer data) {
+                String target = rollingFiles != null ? rollingFiles.getPath(path) : path;
+                synchronized (recoveredBatches) {
+                    Utf8Buffer recovered = recoveredBatches.get(target);
+                    if (recovered == null) {
+                        recoveredBatches.put(target, data);
+                    } else {
+                        recovered.append(data);
+                    }
+                }
+            }
+        };
+    }
+
+    private Map<String, Utf8Buffer> takeRecoveredBatches() {
+        synchronized (recoveredBatches) {
+            if (recoveredBatches.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<String, Utf8Buffer> recovered = new LinkedHashMap<>(recoveredBatches);
+            recoveredBatches.clear();
+            return recovered;
+        }
+    }
+
+    private static ScheduledExecutorService newScheduler(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+     * Scheduled tasks catch every Throwable, the executor would silently stop running them otherwise.
+     */
+    private Runnable createFlushTask() {
+        return new Runnable() {
             @Override
             public void run() {
+                Timer.Context time = flushTimer.time();
                 try {
                     writeToHdfs();
-                } catch (Exception e) {
+                } catch (RetryPolicy.CircuitOpenException e) {
+                    LOG.debug(e.getMessage());
+                } catch (Throwable e) {
                     LOG.warn("Exception while writing to HDFS", e);
+                } finally {
+                    time.stop();
                 }
             }
         };
     }
 
+    private Runnable createCloseTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    appendSessions.closeExpired();
+                    if (flushIntervalInMillis == 0) {
+                        writeRecoveredBatches();
+                    }
+                } catch (Throwable e) {
+                    LOG.warn("Exception while closing HDFS append streams", e);
+                }
+            }
+        };
+    }
+
+    private Runnable createRollTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rollingFiles.rollExpired();
+                } catch (Throwable e) {
+                    LOG.warn("Exception while rolling HDFS files", e);
+                }
+            }
+        };
+    }
+
+    private Runnable createReplayTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replayJournal();
+                } catch (Throwable e) {
+                    LOG.debug("Exception while replaying journal to HDFS, retrying in {} ms", REPLAY_INTERVAL_MILLIS, e);
+                }
+            }
+        };
+    }
 
     @Override
     public void stop() {
         LOG.info("Stopping WebHDFS output...");
-        if(flushTask != null) {
-            flushTask.cancel();
+        // writers waiting for memory fail instead of waiting for flushes which won't come
+        isRunning.set(false);
+        if(replayScheduler != null) {
+            replayScheduler.shutdownNow();
         }
-        if(flushTimer != null) {
-            flushTimer.cancel();
+        if(flushScheduler != null) {
+            for (ScheduledFuture<?> task : Arrays.asList(flushTask, closeTask, rollTask)) {
+                if (task != null) {
+                    task.cancel(false);
+                }
+            }
+            drain();
+        }
+        if(flushExecutor != null) {
+            flushExecutor.shutdown();
+        }
+        LOG.debug("WebHDFS connection pool: {}", hdfsConnection.getPoolStats());
+        hdfsConnection.close();
+        if(journal != null) {
+            synchronized (this) {
+                journal.close();
+            }
+        }
+        removeMetrics();
+    }
+
+    /*
+     * Writes out everything still buffered and completes open files. Runs on the flush
+     * scheduler, behind a flush in progress, and is abandoned after the stop timeout.
+     */
+    private void drain() {
+        Future<?> drained = flushScheduler.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    writeRemaining();
+                } finally {
+                    completeFiles();
+                }
+                synchronized (recoveredBatches) {
+                    if (recoveredBatches.isEmpty()) {
+                        return null;
+                    }
+                }
+                // streams which failed to complete get one more attempt
+                try {
+                    writeRemaining();
+                } finally {
+                    completeFiles();
+                    spillRecoveredBatches();
+                }
+                return null;
+            }
+        });
+        flushScheduler.shutdown();
+        try {
+            drained.get(stopTimeoutInMillis, TimeUnit.MILLISECONDS);
+            LOG.info("Flushed buffered messages of WebHDFS output");
+        } catch (TimeoutException e) {
+            LOG.warn("Final flush of WebHDFS output did not complete within {} ms, {} buffered bytes are lost",
+                    stopTimeoutInMillis, getBufferedBytes());
+            flushScheduler.shutdownNow();
+        } catch (ExecutionException e) {
+            LOG.warn("Exception during final flush of WebHDFS output, {} buffered bytes are lost",
+                    getBufferedBytes(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            flushScheduler.shutdownNow();
+        }
+    }
+
+    private void completeFiles() {
+        if (rollingFiles != null) {
+            rollingFiles.finishAll();
+        }
+        if (appendSessions != null) {
+            appendSessions.closeAll();
+        }
+    }
+
+    /*
+     * Batches which can't be written go to the journal if there is one, to be replayed after a restart.
+     */
+    private void writeRemaining() throws Exception {
+        if (parquetFiles != null) {
+            try {
+                writeParquetFiles(true);
+            } catch (Exception e) {
+                if (journal == null) {
+                    LOG.warn("Exception while writing Parquet files to HDFS, {} files are lost",
+                            pendingParquetFiles.size(), e);
+                    return;
+                }
+                LOG.warn("Exception while writing Parquet files to HDFS, spilling {} files to the journal",
+                        pendingParquetFiles.size(), e);
+                synchronized (this) {
+                    journalPendingParquetFiles();
+                }
+            }
+            return;
+        }
+        if (flushIntervalInMillis == 0) {
+            writeRecoveredBatches();
+            return;
+        }
+        try {
+            writeToHdfs();
+        } catch (Exception e) {
+            if (journal == null) {
+                throw e;
+            }
+            LOG.warn("Exception while writing to HDFS, spilling {} pending batches to the journal",
+                    pendingBatch.size(), e);
+            synchronized (this) {
+                journalPendingBatches();
+            }
         }
-        isRunning.set(false);
     }
 
     @Override
@@ -117,82 +789,600 @@ public class WebHDFSOutput implements MessageOutput {
     }
 
     public void write(Message message) throws Exception {
+        messagesMeter.mark();
+        long start = System.nanoTime();
         String path = getFormattedPath(message);
-        String messageToWrite = getFormattedMessage(message);
+        if (parquetFiles != null) {
+            // the size of a row is only known once it is encoded into its file
+            if (!admit(0)) {
+                return;
+            }
+            awaitBufferSpace();
+            parquetFiles.write(path, message);
+            formatTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return;
+        }
+        Utf8Buffer messageToWrite = getFormattedMessage(message);
+        formatTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        try {
+            write(path, messageToWrite);
+        } finally {
+            if (messageToWrite.array().length > MAX_RETAINED_MESSAGE_BUFFER) {
+                messageBuffer.remove();
+            }
+        }
+    }
+
+    private void write(String path, Utf8Buffer messageToWrite) throws Exception {
         if (flushIntervalInMillis == 0) {
-            writeToHdfs(path, messageToWrite);
+            writeImmediately(path, toBatch(messageToWrite));
         } else {
-            synchronized (this) {
-                messagesToWrite.add(new MessageData(path, messageToWrite));
+            if (!admit(messageToWrite.size())) {
+                return;
+            }
+            awaitBufferSpace();
+            int pathSize = pathBuffers.append(path, messageToWrite);
+            if (isFlushThresholdReached(pathSize)) {
+                requestFlush();
             }
         }
     }
 
-    private synchronized void writeToHdfs() throws IOException, AuthenticationException {
-        Map<String, StringBuilder> pathToDataMap = new HashMap<>();
-        for (MessageData message : messagesToWrite) {
-            StringBuilder builder = pathToDataMap.get(message.getPath());
+    private void awaitBufferSpace() {
+        while (getBufferedMessages() >= bufferSize) {
+            if (!isRunning.get()) {
+                throw new IllegalStateException("WebHDFS output is stopped and its buffer is full");
+            }
+            requestFlush();
+            LockSupport.parkNanos(FULL_BUFFER_PARK_NANOS);
+        }
+    }
+
+    /*
+     * Messages buffered since the last flush, rows of the Parquet files being built in Parquet format.
+     */
+    private long getBufferedMessages() {
+        return parquetFiles != null ? parquetFiles.getBufferedRows() : pathBuffers.getMessageCount();
+    }
 
-            if (builder == null) {
-                builder = new StringBuilder();
-                pathToDataMap.put(message.getPath(), builder);
+    /*
+     * Data buffered since the last flush, which no flush has taken over yet.
+     */
+    private long getUnflushedBytes() {
+        return parquetFiles != null ? parquetFiles.getBufferedBytes() : pathBuffers.getByteCount();
+    }
+
+    private long getBufferedBytes() {
+        return getUnflushedBytes() + pendingBytes.get();
+    }
+
+    /*
+     * Applies the overflow policy when the buffered data would exceed the memory limit.
+     * Returns false if the message has to be dropped.
+     */
+    private boolean admit(int size) {
+        if (memoryLimit <= 0 || getBufferedBytes() + size <= memoryLimit) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                blockedWrites.incrementAndGet();
+                while (getBufferedBytes() + size > memoryLimit) {
+                    if (!isRunning.get()) {
+                        throw new IllegalStateException("WebHDFS output is stopped and its memory limit is exceeded");
+                    }
+                    requestFlush();
+                    LockSupport.parkNanos(FULL_BUFFER_PARK_NANOS);
+                }
+                return true;
+            case DROP_NEWEST:
+                droppedMessages.incrementAndGet();
+                return false;
+            default:
+                // the flush sheds the oldest batches. The message itself is only dropped when
+                // the data buffered since the last flush already exceeds the limit.
+                requestFlush();
+                if (getUnflushedBytes() + size > memoryLimit) {
+                    droppedMessages.incrementAndGet();
+                    return false;
+                }
+                return true;
+        }
+    }
+
+    /*
+     * Drops or spills the oldest pending batches until the buffered data fits into the memory limit again.
+     */
+    private void shedOldestBatches() {
+        if (memoryLimit <= 0 || (overflowPolicy != OverflowPolicy.DROP_OLDEST && overflowPolicy != OverflowPolicy.SPILL)) {
+            return;
+        }
+        int shed = 0;
+        Iterator<Map.Entry<String, Utf8Buffer>> it = pendingBatch.entrySet().iterator();
+        while (getBufferedBytes() > memoryLimit && it.hasNext()) {
+            Map.Entry<String, Utf8Buffer> entry = it.next();
+            if (overflowPolicy == OverflowPolicy.SPILL && spill(entry.getKey(), entry.getValue())) {
+                spilledBatches.incrementAndGet();
+            } else {
+                droppedBatches.incrementAndGet();
             }
-            builder.append(message.getMessage());
+            pendingBytes.addAndGet(-entry.getValue().size());
+            it.remove();
+            shed++;
         }
+        if (shed > 0) {
+            LOG.warn("Memory limit of WebHDFS output exceeded, {} {} batches", overflowPolicy == OverflowPolicy.SPILL
+                    ? "spilled" : "dropped", shed);
+        }
+    }
 
-        for (Map.Entry<String, StringBuilder> entry : pathToDataMap.entrySet()) {
-            writeToHdfs(entry.getKey(), entry.getValue().toString());
+    private boolean spill(String path, Utf8Buffer data) {
+        try {
+            journal.append(path, data);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Exception while spilling batch for " + path + ", dropping it", e);
+            return false;
         }
-        messagesToWrite.clear();
     }
 
-    private void writeToHdfs(String path, String data) throws IOException, AuthenticationException {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(
-                data.getBytes());
+    /*
+     * Moves all pending batches to the journal. Batches which can't be journaled stay pending.
+     */
+    private void journalPendingBatches() {
+        int journaled = 0;
+        Iterator<Map.Entry<String, Utf8Buffer>> it = pendingBatch.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Utf8Buffer> entry = it.next();
+            try {
+                journal.append(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                LOG.warn("Exception while spilling batch for " + entry.getKey() + ", keeping it in memory", e);
+                continue;
+            }
+            pendingBytes.addAndGet(-entry.getValue().size());
+            it.remove();
+            journaled++;
+        }
+        spilledBatches.addAndGet(journaled);
+    }
+
+    /*
+     * Size and count thresholds trigger a flush before the flush interval elapses, whichever is reached first.
+     */
+    private boolean isFlushThresholdReached(int pathSize) {
+        return (flushFileSize > 0 && pathSize >= flushFileSize)
+                || (flushTotalSize > 0 && pathBuffers.getByteCount() >= flushTotalSize)
+                || (flushMessageCount > 0 && pathBuffers.getMessageCount() >= flushMessageCount);
+    }
+
+    /*
+     * Schedules an early flush when the buffer is full or a flush threshold is reached. The scheduler
+     * thread is the only one swapping the buffers, so the extra flush never overlaps with the periodic one.
+     */
+    private void requestFlush() {
+        if (flushScheduler != null && flushRequested.compareAndSet(false, true)) {
+            try {
+                flushScheduler.execute(createFlushTask());
+            } catch (RejectedExecutionException e) {
+                // scheduler already shut down by stop()
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /*
+     * Producers only append to the path buffers, so they never wait for the upload. Swapped out
+     * buffers stay in the pending batch until their path was written successfully.
+     */
+    synchronized void writeToHdfs() throws Exception {
+        flushRequested.set(false);
+        if (parquetFiles != null) {
+            writeParquetFiles(false);
+            return;
+        }
+        // recovered batches were written before the buffered ones, and are already framed
+        for (Map.Entry<String, Utf8Buffer> entry : takeRecoveredBatches().entrySet()) {
+            addPendingBatch(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Utf8Buffer> entry : pathBuffers.swap().entrySet()) {
+            addPendingBatch(entry.getKey(), toBatch(entry.getValue()));
+        }
+        // batches go behind the journaled ones until the replayer caught up, so every file
+        // still receives its data in order
+        boolean journaling = journal != null && !journal.isEmpty();
+        if (journaling) {
+            journalPendingBatches();
+        }
+        shedOldestBatches();
+        reportDroppedMessages();
+        if (journaling) {
+            return;
+        }
+
         try {
-            hdfsConnection.append(path, inputStream);
-        } catch (FileNotFoundException e) {
-            hdfsConnection.create(path, inputStream);
+            if (flushExecutor != null && pendingBatch.size() > 1) {
+                writePendingBatchesInParallel();
+            } else {
+                writePendingBatches();
+            }
+        } catch (Exception e) {
+            if (!spillOnFailure) {
+                throw e;
+            }
+            LOG.warn("Exception while writing to HDFS, spilling {} pending batches to the journal",
+                    pendingBatch.size(), e);
+            journalPendingBatches();
+        }
+    }
+
+    private void addPendingBatch(String path, Utf8Buffer batch) {
+        Utf8Buffer pending = pendingBatch.get(path);
+        if (pending == null) {
+            pendingBatch.put(path, batch);
+        } else {
+            pending.append(batch);
         }
+        pendingBytes.addAndGet(batch.size());
     }
 
+    /*
+     * Immediate mode has no pending batches, so recovered batches are written right away.
+     * Batches which fail again stay queued for the next attempt.
+     */
+    private void writeRecoveredBatches() {
+        for (Map.Entry<String, Utf8Buffer> entry : takeRecoveredBatches().entrySet()) {
+            try {
+                writeImmediately(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                LOG.warn("Exception while writing recovered batch for " + entry.getKey() + ", retrying later", e);
+                createRecovery().recover(entry.getKey(), entry.getValue());
+            }
+        }
+    }
 
+    /*
+     * Runs when the output is stopped, after the last attempt to write the recovered batches.
+     */
+    private void spillRecoveredBatches() {
+        for (Map.Entry<String, Utf8Buffer> entry : takeRecoveredBatches().entrySet()) {
+            if (journal != null && spill(entry.getKey(), entry.getValue())) {
+                spilledBatches.incrementAndGet();
+            } else {
+                droppedBatches.incrementAndGet();
+                LOG.warn("Unable to write {} bytes recovered from a failed append stream to {}, they are lost",
+                        entry.getValue().size(), entry.getKey());
+            }
+        }
+    }
+
+    /*
+     * Uploads the finished Parquet files. Files which failed stay pending for the next flush.
+     * When the files being built exceed the buffer size or the memory limit, the largest ones
+     * are finished early, so they can be uploaded and their memory released. Pending files are
+     * counted in pendingBytes and shed like pending batches.
+     */
+    private synchronized void writeParquetFiles(boolean all) throws Exception {
+        addPendingParquetFiles(parquetFiles.finishDue(all));
+        if (parquetFiles.getBufferedRows() >= bufferSize || (memoryLimit > 0 && getBufferedBytes() > memoryLimit)) {
+            addPendingParquetFiles(parquetFiles.finishLargest(memoryLimit > 0 ? memoryLimit / 2 : Long.MAX_VALUE,
+                    bufferSize / 2));
+        }
+        shedOldestParquetFiles();
+
+        Iterator<ParquetFiles.FinishedFile> it = pendingParquetFiles.iterator();
+        while (it.hasNext()) {
+            ParquetFiles.FinishedFile file = it.next();
+            writeToHdfs(file.getPath(), file.getData());
+            it.remove();
+            pendingBytes.addAndGet(-file.getData().size());
+        }
+    }
+
+    private void addPendingParquetFiles(List<ParquetFiles.FinishedFile> files) {
+        for (ParquetFiles.FinishedFile file : files) {
+            pendingParquetFiles.add(file);
+            pendingBytes.addAndGet(file.getData().size());
+        }
+    }
+
+    private void shedOldestParquetFiles() {
+        if (memoryLimit <= 0 || (overflowPolicy != OverflowPolicy.DROP_OLDEST && overflowPolicy != OverflowPolicy.SPILL)) {
+            return;
+        }
+        Iterator<ParquetFiles.FinishedFile> it = pendingParquetFiles.iterator();
+        while (getBufferedBytes() > memoryLimit && it.hasNext()) {
+            ParquetFiles.FinishedFile file = it.next();
+            if (overflowPolicy == OverflowPolicy.SPILL && spill(file.getPath(), file.getData())) {
+                spilledBatches.incrementAndGet();
+            } else {
+                droppedBatches.incrementAndGet();
+                LOG.warn("Memory limit of WebHDFS output exceeded, dropped Parquet file for {} with {} rows",
+                        file.getPath(), file.getRows());
+            }
+            pendingBytes.addAndGet(-file.getData().size());
+            it.remove();
+        }
+    }
+
+    /*
+     * Moves all pending Parquet files to the journal. Files which can't be journaled are lost.
+     */
+    private void journalPendingParquetFiles() {
+        for (ParquetFiles.FinishedFile file : pendingParquetFiles) {
+            if (spill(file.getPath(), file.getData())) {
+                spilledBatches.incrementAndGet();
+            } else {
+                droppedBatches.incrementAndGet();
+            }
+            pendingBytes.addAndGet(-file.getData().size());
+        }
+        pendingParquetFiles.clear();
+    }
+
+    private void writePendingBatches() throws Exception {
+        Iterator<Map.Entry<String, Utf8Buffer>> it = pendingBatch.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Utf8Buffer> entry = it.next();
+            writeToHdfs(entry.getKey(), entry.getValue());
+            it.remove();
+            pendingBytes.addAndGet(-entry.getValue().size());
+        }
+    }
+
+    /*
+     * Every path is written by one worker and the flush waits for all of them, so the batches
+     * of a path are still written in order. Connections per host are capped by the pool size.
+     * Batches which failed stay pending, the first failure is rethrown.
+     */
+    private void writePendingBatchesInParallel() throws Exception {
+        List<Map.Entry<String, Utf8Buffer>> entries = new ArrayList<>(pendingBatch.entrySet());
+        List<Callable<Void>> tasks = new ArrayList<>(entries.size());
+        for (final Map.Entry<String, Utf8Buffer> entry : entries) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    writeToHdfs(entry.getKey(), entry.getValue());
+                    return null;
+                }
+            });
+        }
+
+        List<Future<Void>> results = flushExecutor.invokeAll(tasks);
+        Exception failure = null;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                results.get(i).get();
+                pendingBatch.remove(entries.get(i).getKey());
+                pendingBytes.addAndGet(-entries.get(i).getValue().size());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /*
+     * Writers upload concurrently without holding a lock. Only going behind the journaled
+     * batches is ordered with the replay, so a batch is either written right away or queued
+     * behind every batch which is still journaled.
+     */
+    private void writeImmediately(String path, Utf8Buffer data) throws Exception {
+        if (journal == null) {
+            writeToHdfs(path, data);
+            return;
+        }
+        if (!journal.appendIfNotEmpty(path, data)) {
+            try {
+                writeToHdfs(path, data);
+                return;
+            } catch (Exception e) {
+                if (!spillOnFailure) {
+                    throw e;
+                }
+                LOG.warn("Exception while writing to HDFS, spilling message to the journal", e);
+            }
+            journal.append(path, data);
+        }
+        spilledBatches.incrementAndGet();
+    }
+
+    /*
+     * Runs on its own timer, so the flush keeps journaling new batches while the replay waits
+     * for HDFS. Each batch is written under the output lock to not interleave with a flush.
+     */
+    private void replayJournal() throws Exception {
+        if (journal.isEmpty()) {
+            return;
+        }
+        int replayed = journal.replay(new SegmentJournal.Replayer() {
+            @Override
+            public void replay(String path, Payload data) throws Exception {
+                synchronized (WebHDFSOutput.this) {
+                    writeToHdfs(path, data);
+                }
+            }
+        });
+        LOG.info("Replayed {} journaled batches to HDFS", replayed);
+    }
+
+    private void reportDroppedMessages() {
+        long dropped = droppedMessages.get();
+        if (dropped > reportedDroppedMessages) {
+            LOG.warn("Memory limit of WebHDFS output exceeded, dropped {} messages", dropped - reportedDroppedMessages);
+            reportedDroppedMessages = dropped;
+        }
+    }
+
+    private void writeToHdfs(final String path, final Payload data) throws IOException, AuthenticationException {
+        batchSizeHistogram.update(data.size());
+        try {
+            retryPolicy.execute(path, new RetryPolicy.Write() {
+                @Override
+                public void run() throws IOException, AuthenticationException {
+                    writeOnce(path, data);
+                }
+            });
+        } catch (IOException | AuthenticationException | RuntimeException e) {
+            writeErrorsMeter.mark();
+            throw e;
+        }
+    }
+
+    private void writeOnce(String path, Payload data) throws IOException, AuthenticationException {
+        if (rollingFiles != null) {
+            rollingFiles.write(path, data);
+        } else {
+            writeToFile(path, data);
+        }
+    }
+
+    private void writeToFile(String path, Payload data) throws IOException, AuthenticationException {
+        if (appendSessions != null) {
+            appendSessions.write(path, data);
+            return;
+        }
+        knownFiles.write(hdfsConnection, path, data, compression, compressionLevel);
+    }
+
+
+    /*
+     * In immediate mode the messages of a batch are grouped by file, so each file gets one
+     * append per batch instead of one per message.
+     */
     @Override
     public void write(List<Message> list) throws Exception {
+        if (flushIntervalInMillis > 0 || parquetFiles != null || list.size() == 1) {
+            for (Message message : list) {
+                write(message);
+            }
+            return;
+        }
+
+        messagesMeter.mark(list.size());
+        long start = System.nanoTime();
+        Map<String, Utf8Buffer> batch = new LinkedHashMap<>();
         for (Message message : list) {
-            write(message);
+            String path = getFormattedPath(message);
+            Utf8Buffer buffer = batch.get(path);
+            if (buffer == null) {
+                buffer = new Utf8Buffer(1024);
+                batch.put(path, buffer);
+            }
+            format(message, buffer);
+        }
+        formatTimer.update((System.nanoTime() - start) / list.size(), TimeUnit.NANOSECONDS);
+        for (Map.Entry<String, Utf8Buffer> entry : batch.entrySet()) {
+            writeImmediately(entry.getKey(), toBatch(entry.getValue()));
         }
     }
 
 
-    private String getFormattedMessage(Message message) {
-        String formattedMessage;
-        if (messageFormat != null && messageFormat.length() > 0) {
-            formattedMessage = StrSubstitutor.replace(messageFormat, message.getFields());
+    /*
+     * Formats into a per-thread buffer, which is only valid until the next message of the thread.
+     */
+    Utf8Buffer getFormattedMessage(Message message) {
+        Utf8Buffer buffer = messageBuffer.get();
+        buffer.reset();
+        format(message, buffer);
+        buffer.addRecords(1);
+        return buffer;
+    }
+
+    private void format(Message message, Utf8Buffer out) {
+        if (avroContainer != null) {
+            avroContainer.encode(message, out);
+        } else if (jsonFormatter != null) {
+            jsonFormatter.format(message, out);
         } else {
-            formattedMessage = String.valueOf(message.getTimestamp()) + FIELD_SEPARATOR +
-                    message.getSource() + FIELD_SEPARATOR + message.getMessage();
+            messageFormatter.format(message, out);
         }
+    }
 
-        if (!formattedMessage.endsWith("\n")) {
-            formattedMessage = formattedMessage.concat("\n");
-        }
+    /*
+     * Avro records are only readable within a block, so every batch written is framed as one.
+     */
+    private Utf8Buffer toBatch(Utf8Buffer messages) {
+        return avroContainer != null ? avroContainer.toBlock(messages) : messages;
+    }
 
-        return formattedMessage;
+    String getFormattedPath(Message message) {
+        String path = pathTemplate.render(message);
+        return pathSuffix.isEmpty() ? path : path.concat(pathSuffix);
     }
 
-    private String getFormattedPath(Message message) {
-        String formattedPath = fileToWrite;
+    /**
+     * Number of writes which had to wait because the memory limit was exceeded.
+     */
+    public long getBlockedWrites() {
+        return blockedWrites.get();
+    }
 
-        if (fileToWrite.contains("${")) {
-            formattedPath = StrSubstitutor.replace(formattedPath, message.getFields());
-        }
+    /**
+     * Number of incoming messages dropped because the memory limit was exceeded.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
 
-        if(fileToWrite.contains("%")) {
-            formattedPath = String.format(formattedPath, message.getTimestamp().toDate());
-        }
+    /**
+     * Number of pending batches dropped because the memory limit was exceeded.
+     */
+    public long getDroppedBatches() {
+        return droppedBatches.get();
+    }
 
-        return formattedPath;
+    /**
+     * Number of batches moved to the journal because the memory limit was exceeded or HDFS failed.
+     */
+    public long getSpilledBatches() {
+        return spilledBatches.get();
+    }
+
+    /**
+     * Number of writes which had to fall back from APPEND to CREATE or the other way round.
+     */
+    public long getKnownFileMisses() {
+        return knownFiles.getMisses();
+    }
+
+    /**
+     * State of the circuit breaker guarding writes to HDFS.
+     */
+    public CircuitBreaker.State getCircuitBreakerState() {
+        return retryPolicy.getCircuitBreaker().getState();
+    }
+
+    /**
+     * Number of times the circuit breaker opened.
+     */
+    public long getCircuitBreakerOpenCount() {
+        return retryPolicy.getCircuitBreaker().getOpenCount();
+    }
+
+    /**
+     * Number of retried writes to HDFS.
+     */
+    public long getRetries() {
+        return retryPolicy.getRetries();
+    }
+
+    /**
+     * Number of failed write attempts of the given type.
+     */
+    public long getFailures(FailureType type) {
+        return retryPolicy.getFailures(type);
+    }
+
+    /*
+     * Fields added after the first release are missing from the configuration of existing outputs.
+     */
+    private static int getInt(Configuration configuration, String key, int defaultValue) {
+        return configuration.intIsSet(key) ? configuration.getInt(key) : defaultValue;
     }
 
     public interface Factory extends MessageOutput.Factory<WebHDFSOutput> {
@@ -252,6 +1442,75 @@ public class WebHDFSOutput implements MessageOutput {
                             ConfigurationField.Optional.OPTIONAL)
             );
 
+            Map<String, String> outputFormats = new LinkedHashMap<>();
+            outputFormats.put(OutputFormat.TEXT.name(), "Text");
+            outputFormats.put(OutputFormat.JSON.name(), "JSON lines");
+            outputFormats.put(OutputFormat.PARQUET.name(), "Parquet");
+            outputFormats.put(OutputFormat.AVRO.name(), "Avro");
+            configurationRequest.addField(new DropdownField(
+                            CK_OUTPUT_FORMAT,
+                            "Output Format",
+                            OutputFormat.TEXT.name(),
+                            outputFormats,
+                            "Layout of the written files. The message format only applies to text files",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new TextField(
+                            CK_JSON_INCLUDE_FIELDS,
+                            "JSON Included Fields",
+                            "",
+                            "Message fields written to JSON lines, separated by commas. Empty for all fields",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new TextField(
+                            CK_JSON_EXCLUDE_FIELDS,
+                            "JSON Excluded Fields",
+                            "",
+                            "Message fields left out of JSON lines, separated by commas",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new TextField(
+                            CK_PARQUET_SCHEMA,
+                            "Parquet Schema",
+                            "",
+                            "Columns of Parquet files as name:type, separated by commas. Types are string, long, double, " +
+                                    "boolean and timestamp. Empty to infer the columns from the first message",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_PARQUET_ROW_GROUP_SIZE,
+                            "Parquet Row Group Size",
+                            DEFAULT_PARQUET_ROW_GROUP_SIZE,
+                            "MB of column data buffered before it is encoded as a row group of a Parquet file",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            Map<String, String> compressions = new LinkedHashMap<>();
+            compressions.put(Compression.NONE.name(), "None");
+            compressions.put(Compression.GZIP.name(), "gzip");
+            compressions.put(Compression.SNAPPY.name(), "Snappy (text and JSON)");
+            compressions.put(Compression.LZ4.name(), "LZ4 (text and JSON)");
+            configurationRequest.addField(new DropdownField(
+                            CK_COMPRESSION,
+                            "Compression",
+                            Compression.NONE.name(),
+                            compressions,
+                            "Compression of the written files. The extension of the codec is added to the file path. Without a close interval, every flush adds a gzip member to the file",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_COMPRESSION_LEVEL,
+                            "Compression Level",
+                            Compression.DEFAULT_LEVEL,
+                            "1 (fastest) to 9 (smallest), -1 for the default level of the codec",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
             configurationRequest.addField(new NumberField(
                             CK_FLUSH_INTERVAL,
                             "Flush Interval",
@@ -260,38 +1519,223 @@ public class WebHDFSOutput implements MessageOutput {
                             ConfigurationField.Optional.NOT_OPTIONAL)
             );
 
-            return configurationRequest;
-        }
-    }
+            configurationRequest.addField(new NumberField(
+                            CK_FLUSH_PARALLELISM,
+                            "Flush Parallelism",
+                            DEFAULT_FLUSH_PARALLELISM,
+                            "Number of files written to HDFS at the same time by a flush. 1 to write them one after another",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
 
-    public static class Descriptor extends MessageOutput.Descriptor {
-        public Descriptor() {
-            super("WebHDFS Output", false, "", "Forwards messages to HDFS for storage");
-        }
-    }
+            configurationRequest.addField(new NumberField(
+                            CK_STOP_TIMEOUT,
+                            "Stop Timeout",
+                            DEFAULT_STOP_TIMEOUT,
+                            "Seconds to wait for the final flush of buffered messages when the output is stopped",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
 
-    private static class MessageData {
-        private String path, message;
+            configurationRequest.addField(new NumberField(
+                            CK_POOL_SIZE,
+                            "Connection Pool Size",
+                            PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                            "Maximum number of concurrent keep-alive connections per name node or data node. " +
+                                    "Raise -Dhttp.maxConnections of the JVM to the same value",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
 
-        public MessageData(String path, String messageToWrite) {
-            this.path = path;
-            this.message = messageToWrite;
-        }
+            configurationRequest.addField(new NumberField(
+                            CK_POOL_IDLE_TIMEOUT,
+                            "Connection Idle Timeout",
+                            60,
+                            "Seconds after which the per host bookkeeping of an unused name node or data node is dropped. " +
+                                    "Idle sockets are closed by the JVM. 0 to never drop it",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
 
-        public String getPath() {
-            return path;
-        }
+            configurationRequest.addField(new NumberField(
+                            CK_CONNECT_TIMEOUT,
+                            "Connect Timeout",
+                            DEFAULT_CONNECT_TIMEOUT,
+                            "Seconds to wait for a connection to the name node or a data node. 0 to wait forever",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
 
-        public void setPath(String path) {
-            this.path = path;
-        }
+            configurationRequest.addField(new NumberField(
+                            CK_READ_TIMEOUT,
+                            "Read Timeout",
+                            DEFAULT_READ_TIMEOUT,
+                            "Seconds to wait for a response of the name node or a data node. 0 to wait forever",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_RETRY_ATTEMPTS,
+                            "Retry Attempts",
+                            DEFAULT_RETRY_ATTEMPTS,
+                            "Attempts per write when HDFS fails with a retryable error (timeouts, 5xx, lease recovery)",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_RETRY_BACKOFF,
+                            "Retry Backoff",
+                            DEFAULT_RETRY_BACKOFF,
+                            "Base delay in ms between retries, doubled with every attempt and randomized",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_BREAKER_THRESHOLD,
+                            "Circuit Breaker Threshold",
+                            DEFAULT_BREAKER_THRESHOLD,
+                            "Consecutive failed writes after which writes to HDFS are suspended. 0 to disable",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_BREAKER_OPEN_TIME,
+                            "Circuit Breaker Open Time",
+                            DEFAULT_BREAKER_OPEN_TIME,
+                            "Seconds writes are suspended before a single probe write is tried. Doubled while probes fail",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_BUFFER_SIZE,
+                            "Buffer Size",
+                            DEFAULT_BUFFER_SIZE,
+                            "Maximum number of messages buffered between flushes, or rows of the Parquet files being built. "
+                                    + "Writers wait for an early flush when it is full",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_FLUSH_FILE_SIZE,
+                            "Flush Size per File",
+                            0,
+                            "Flush as soon as the data buffered for one file reaches this many KB. 0 to disable",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_FLUSH_TOTAL_SIZE,
+                            "Flush Total Size",
+                            0,
+                            "Flush as soon as the data buffered for all files reaches this many KB. 0 to disable",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_FLUSH_MESSAGE_COUNT,
+                            "Flush Message Count",
+                            0,
+                            "Flush as soon as this many messages are buffered. 0 to disable",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
 
-        public String getMessage() {
-            return message;
+            configurationRequest.addField(new NumberField(
+                            CK_MEMORY_LIMIT,
+                            "Memory Limit",
+                            DEFAULT_MEMORY_LIMIT,
+                            "Maximum MB of data buffered by this output, including batches waiting to be written to HDFS "
+                                    + "and Parquet files being built. 0 for no limit",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            Map<String, String> overflowPolicies = new LinkedHashMap<>();
+            overflowPolicies.put(OverflowPolicy.BLOCK.name(), "Block writers");
+            overflowPolicies.put(OverflowPolicy.DROP_OLDEST.name(), "Drop oldest batches");
+            overflowPolicies.put(OverflowPolicy.DROP_NEWEST.name(), "Drop incoming messages");
+            overflowPolicies.put(OverflowPolicy.SPILL.name(), "Spill to disk");
+            configurationRequest.addField(new DropdownField(
+                            CK_OVERFLOW_POLICY,
+                            "Overflow Policy",
+                            OverflowPolicy.BLOCK.name(),
+                            overflowPolicies,
+                            "What to do when the memory limit is exceeded",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new TextField(
+                            CK_SPILL_DIRECTORY,
+                            "Spill Directory",
+                            "",
+                            "Local directory of the journal for batches spilled to disk. Defaults to a directory in java.io.tmpdir",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new BooleanField(
+                            CK_SPILL_ON_FAILURE,
+                            "Spill Failed Flushes",
+                            false,
+                            "Spill batches to the journal when writing them to HDFS fails, instead of retrying them from memory")
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_SEGMENT_SIZE,
+                            "Journal Segment Size",
+                            DEFAULT_SEGMENT_SIZE,
+                            "Size in MB of the memory-mapped journal segment files",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_KNOWN_FILES,
+                            "Known Files Cache Size",
+                            KnownFiles.DEFAULT_CAPACITY,
+                            "Number of recently written files remembered to exist, which are appended to without trying to create them first",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_ROLL_SIZE,
+                            "Roll Size",
+                            0,
+                            "Roll over to a new part of a file once it reaches this many MB. 0 to disable",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_ROLL_INTERVAL,
+                            "Roll Interval",
+                            0,
+                            "Roll over to a new part of a file once it is this many seconds old. 0 to disable",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_ROLL_MESSAGE_COUNT,
+                            "Roll Message Count",
+                            0,
+                            "Roll over to a new part of a file once it holds this many messages. 0 to disable",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_CLOSE_INTERVAL,
+                            "Close Interval",
+                            0,
+                            "Keep a streaming append open per file and close it after this many idle seconds. " +
+                                    "0 to append with a new request on every flush",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_REOPEN,
+                            "Reopen Interval",
+                            3600,
+                            "Maximum age in seconds of a streaming append before it is closed and reopened",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            return configurationRequest;
         }
+    }
 
-        public void setMessage(String message) {
-            this.message = message;
+    public static class Descriptor extends MessageOutput.Descriptor {
+        public Descriptor() {
+            super("WebHDFS Output", false, "", "Forwards messages to HDFS for storage");
         }
     }
 }
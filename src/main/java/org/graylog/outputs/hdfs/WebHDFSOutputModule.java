@@ -1,5 +1,6 @@
 package org.graylog.outputs.hdfs;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.multibindings.MapBinder;
 import org.graylog2.plugin.PluginConfigBean;
 import org.graylog2.plugin.PluginModule;
@@ -26,5 +27,7 @@ public class WebHDFSOutputModule extends PluginModule {
     protected void configure() {
         final MapBinder<String, MessageOutput.Factory<? extends MessageOutput>> outputMapBinder = outputsMapBinder();
         installOutput(outputMapBinder, WebHDFSOutput.class, WebHDFSOutput.Factory.class);
+        // the output registers its metrics in the registry of the server, which Graylog binds
+        requireBinding(MetricRegistry.class);
     }
 }
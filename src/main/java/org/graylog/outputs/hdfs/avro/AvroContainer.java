@@ -0,0 +1,216 @@
+package org.graylog.outputs.hdfs.avro;
+
+import org.graylog.outputs.hdfs.Payload;
+import org.graylog.outputs.hdfs.Utf8Buffer;
+import org.graylog2.plugin.Message;
+import org.joda.time.ReadableInstant;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Avro object container encoding of messages. Messages are encoded as binary records of
+ * {@link #SCHEMA} and grouped into blocks, each ending with the sync marker of the file, so a
+ * file is valid and splittable after every block. The file header is written when a file is
+ * created, appends only add blocks.
+ * <p/>
+ * All files share one sync marker, derived from a constant, so blocks encoded before a file
+ * is known to exist, or by an earlier run of the output, always match its header.
+ */
+public class AvroContainer {
+
+    public static final String SCHEMA = "{\"type\":\"record\",\"name\":\"Message\",\"namespace\":\"org.graylog2\","
+            + "\"fields\":["
+            + "{\"name\":\"timestamp\",\"type\":{\"type\":\"long\",\"logicalType\":\"timestamp-millis\"}},"
+            + "{\"name\":\"source\",\"type\":[\"null\",\"string\"]},"
+            + "{\"name\":\"message\",\"type\":[\"null\",\"string\"]},"
+            + "{\"name\":\"fields\",\"type\":{\"type\":\"map\",\"values\":[\"null\",\"boolean\",\"long\",\"double\",\"string\"]}}"
+            + "]}";
+
+    private static final byte[] MAGIC = {'O', 'b', 'j', 1};
+    private static final byte[] SYNC_MARKER = syncMarker("graylog-plugin-output-webhdfs");
+
+    private static final int NULL = 0;
+    private static final int BOOLEAN = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+    private static final int STRING = 4;
+
+    private final Integer deflateLevel;
+    private final Utf8Buffer header;
+
+    /**
+     * @param deflateLevel level of the deflate codec, or null to not compress the blocks
+     */
+    public AvroContainer(Integer deflateLevel) {
+        this.deflateLevel = deflateLevel;
+        this.header = new Utf8Buffer(SCHEMA.length() + 64);
+        header.append(MAGIC, 0, MAGIC.length);
+        writeLong(header, 2);
+        writeString(header, "avro.schema");
+        writeString(header, SCHEMA);
+        writeString(header, "avro.codec");
+        writeString(header, deflateLevel != null ? "deflate" : "null");
+        writeLong(header, 0);
+        header.append(SYNC_MARKER, 0, SYNC_MARKER.length);
+    }
+
+    /**
+     * Header starting every file, holding the schema, codec and sync marker.
+     */
+    public Payload getHeader() {
+        return header;
+    }
+
+    /**
+     * Appends the message as a record, without block framing.
+     */
+    public void encode(Message message, Utf8Buffer out) {
+        writeLong(out, message.getTimestamp().getMillis());
+        writeOptionalString(out, message.getField(Message.FIELD_SOURCE));
+        writeOptionalString(out, message.getField(Message.FIELD_MESSAGE));
+
+        int count = 0;
+        for (Map.Entry<String, Object> field : message.getFieldsEntries()) {
+            if (!isTopLevel(field.getKey())) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            writeLong(out, count);
+            for (Map.Entry<String, Object> field : message.getFieldsEntries()) {
+                if (!isTopLevel(field.getKey())) {
+                    writeString(out, field.getKey());
+                    writeValue(out, field.getValue());
+                }
+            }
+        }
+        writeLong(out, 0);
+    }
+
+    /**
+     * Frames the records as one block: record count, byte size, the records, compressed with
+     * the codec of the file, and the sync marker.
+     */
+    public Utf8Buffer toBlock(Utf8Buffer records) {
+        byte[] data = records.array();
+        int size = records.size();
+        if (deflateLevel != null) {
+            data = deflate(records);
+            size = data.length;
+        }
+        Utf8Buffer block = new Utf8Buffer(size + 32);
+        writeLong(block, records.getRecordCount());
+        writeLong(block, size);
+        block.append(data, 0, size);
+        block.append(SYNC_MARKER, 0, SYNC_MARKER.length);
+        block.addRecords(records.getRecordCount());
+        return block;
+    }
+
+    private static boolean isTopLevel(String field) {
+        return Message.FIELD_TIMESTAMP.equals(field) || Message.FIELD_SOURCE.equals(field)
+                || Message.FIELD_MESSAGE.equals(field);
+    }
+
+    private static void writeOptionalString(Utf8Buffer out, Object value) {
+        if (value == null) {
+            writeLong(out, NULL);
+        } else {
+            writeLong(out, 1);
+            writeString(out, value instanceof CharSequence ? (CharSequence) value : String.valueOf(value));
+        }
+    }
+
+    private static void writeValue(Utf8Buffer out, Object value) {
+        if (value == null) {
+            writeLong(out, NULL);
+        } else if (value instanceof Boolean) {
+            writeLong(out, BOOLEAN);
+            out.append(((Boolean) value) ? '\1' : '\0');
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(out, LONG);
+            writeLong(out, ((Number) value).longValue());
+        } else if (value instanceof Number) {
+            writeLong(out, DOUBLE);
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            for (int i = 0; i < 8; i++) {
+                out.appendByte((int) (bits >> (8 * i)));
+            }
+        } else if (value instanceof ReadableInstant) {
+            writeLong(out, STRING);
+            writeString(out, value.toString());
+        } else {
+            writeLong(out, STRING);
+            writeString(out, value instanceof CharSequence ? (CharSequence) value : String.valueOf(value));
+        }
+    }
+
+    /*
+     * Length prefixed UTF-8, encoded straight into the buffer. Unpaired surrogates are one
+     * byte, like their replacement by Utf8Buffer.
+     */
+    private static void writeString(Utf8Buffer out, CharSequence value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        writeLong(out, length);
+        out.append(value);
+    }
+
+    /*
+     * Zig-zag varint, as Avro encodes int and long.
+     */
+    private static void writeLong(Utf8Buffer out, long value) {
+        long n = (value << 1) ^ (value >> 63);
+        while ((n & ~0x7fL) != 0) {
+            out.appendByte((int) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        out.appendByte((int) n);
+    }
+
+    private byte[] deflate(Utf8Buffer records) {
+        // raw deflate without zlib header, as the Avro deflate codec expects
+        Deflater deflater = new Deflater(deflateLevel, true);
+        try {
+            deflater.setInput(records.array(), 0, records.size());
+            deflater.finish();
+            Utf8Buffer out = new Utf8Buffer(records.size() / 4 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.append(chunk, 0, n);
+            }
+            return out.size() == out.array().length ? out.array() : Arrays.copyOf(out.array(), out.size());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] syncMarker(String seed) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(seed.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
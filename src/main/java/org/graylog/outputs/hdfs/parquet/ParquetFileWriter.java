@@ -0,0 +1,483 @@
+package org.graylog.outputs.hdfs.parquet;
+
+import org.graylog.outputs.hdfs.Utf8Buffer;
+import org.graylog2.plugin.Message;
+import org.joda.time.ReadableInstant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds a Parquet file in memory. Rows are collected per column until the row group size is
+ * reached, then every column is encoded as one data page: definition levels RLE encoded,
+ * values PLAIN encoded, optionally gzip compressed. Numeric and timestamp columns carry min and
+ * max statistics, so readers can skip row groups. {@link #finish()} appends the footer.
+ */
+public class ParquetFileWriter {
+
+    private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+    private static final String CREATED_BY = "graylog-plugin-output-webhdfs";
+
+    private static final int ENCODING_PLAIN = 0;
+    private static final int ENCODING_RLE = 3;
+    private static final int CODEC_UNCOMPRESSED = 0;
+    private static final int CODEC_GZIP = 2;
+    private static final int REPETITION_OPTIONAL = 1;
+    private static final int PAGE_TYPE_DATA = 0;
+
+    private static final byte[] NULL_LEVEL = {0};
+    private static final byte[] VALUE_LEVEL = {1};
+
+    private final ParquetSchema schema;
+    private final boolean gzip;
+    private final int compressionLevel;
+    private final long rowGroupSize;
+    private final long createdAt;
+    private final Utf8Buffer file = new Utf8Buffer(64 * 1024);
+    private final ColumnBuffer[] columns;
+    private final List<RowGroup> rowGroups = new ArrayList<>();
+    private final byte[] scratch = new byte[8];
+    private long rows;
+    private int rowGroupRows;
+
+    /**
+     * @param compressionLevel gzip level of the pages, or null to not compress them
+     */
+    public ParquetFileWriter(ParquetSchema schema, Integer compressionLevel, long rowGroupSize) {
+        this.schema = schema;
+        this.gzip = compressionLevel != null;
+        this.compressionLevel = gzip ? compressionLevel : Deflater.DEFAULT_COMPRESSION;
+        this.rowGroupSize = rowGroupSize;
+        this.createdAt = System.currentTimeMillis();
+        this.columns = new ColumnBuffer[schema.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new ColumnBuffer(schema.getType(i));
+        }
+        file.append(MAGIC, 0, MAGIC.length);
+    }
+
+    public void write(Message message) {
+        long bufferedBytes = 0;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].add(message.getField(schema.getName(i)));
+            bufferedBytes += columns[i].values.size();
+        }
+        rows++;
+        rowGroupRows++;
+        if (bufferedBytes >= rowGroupSize) {
+            flushRowGroup();
+        }
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Size of the file so far, including the rows not yet encoded.
+     */
+    public long getSize() {
+        long size = file.size();
+        for (ColumnBuffer column : columns) {
+            size += column.values.size() + column.levels.size();
+        }
+        return size;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Encodes the last row group and the footer and returns the complete file.
+     */
+    public Utf8Buffer finish() {
+        flushRowGroup();
+        byte[] footer = encodeFooter();
+        file.append(footer, 0, footer.length);
+        writeIntLE(footer.length);
+        file.append(MAGIC, 0, MAGIC.length);
+        return file;
+    }
+
+    private void flushRowGroup() {
+        if (rowGroupRows == 0) {
+            return;
+        }
+        RowGroup rowGroup = new RowGroup(rowGroupRows);
+        for (int i = 0; i < columns.length; i++) {
+            rowGroup.columns.add(encodeColumnChunk(i, columns[i]));
+            columns[i].reset();
+        }
+        for (ColumnChunk chunk : rowGroup.columns) {
+            rowGroup.totalByteSize += chunk.uncompressedSize;
+        }
+        rowGroups.add(rowGroup);
+        rowGroupRows = 0;
+    }
+
+    private ColumnChunk encodeColumnChunk(int index, ColumnBuffer column) {
+        Utf8Buffer page = new Utf8Buffer(column.values.size() + column.levels.size() / 4 + 16);
+        byte[] levels = encodeLevels(column.levels);
+        writeIntLE(page, levels.length);
+        page.append(levels, 0, levels.length);
+        if (column.type == ParquetSchema.ColumnType.BOOLEAN) {
+            byte[] bits = packBooleans(column.values);
+            page.append(bits, 0, bits.length);
+        } else {
+            page.append(column.values);
+        }
+
+        byte[] data = gzip ? compress(page) : null;
+        int compressedSize = gzip ? data.length : page.size();
+
+        ThriftCompactWriter header = new ThriftCompactWriter();
+        header.structBegin();
+        header.fieldI32(1, PAGE_TYPE_DATA);
+        header.fieldI32(2, page.size());
+        header.fieldI32(3, compressedSize);
+        header.fieldStructBegin(5);
+        header.fieldI32(1, rowGroupRows);
+        header.fieldI32(2, ENCODING_PLAIN);
+        header.fieldI32(3, ENCODING_RLE);
+        header.fieldI32(4, ENCODING_RLE);
+        header.structEnd();
+        header.structEnd();
+        byte[] headerBytes = header.toByteArray();
+
+        ColumnChunk chunk = new ColumnChunk(schema.getName(index), column.type);
+        chunk.offset = file.size();
+        chunk.values = rowGroupRows;
+        chunk.uncompressedSize = headerBytes.length + page.size();
+        chunk.compressedSize = headerBytes.length + compressedSize;
+        chunk.nullCount = column.nullCount;
+        chunk.min = column.hasStats ? column.statistic(column.min) : null;
+        chunk.max = column.hasStats ? column.statistic(column.max) : null;
+
+        file.append(headerBytes, 0, headerBytes.length);
+        if (gzip) {
+            file.append(data, 0, data.length);
+        } else {
+            file.append(page);
+        }
+        return chunk;
+    }
+
+    /*
+     * RLE runs of the RLE/bit-packing hybrid encoding, bit width 1.
+     */
+    private static byte[] encodeLevels(Utf8Buffer levels) {
+        Utf8Buffer out = new Utf8Buffer(16);
+        byte[] array = levels.array();
+        int i = 0;
+        while (i < levels.size()) {
+            byte value = array[i];
+            int run = 1;
+            while (i + run < levels.size() && array[i + run] == value) {
+                run++;
+            }
+            writeVarint(out, (long) run << 1);
+            out.append(array, i, 1);
+            i += run;
+        }
+        return Arrays.copyOf(out.array(), out.size());
+    }
+
+    private static byte[] packBooleans(Utf8Buffer values) {
+        byte[] bits = new byte[(values.size() + 7) / 8];
+        byte[] array = values.array();
+        for (int i = 0; i < values.size(); i++) {
+            if (array[i] != 0) {
+                bits[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        return bits;
+    }
+
+    private byte[] compress(Utf8Buffer page) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(page.size() / 4 + 64);
+            OutputStream gzipStream = new GZIPOutputStream(out, 8192) {
+                {
+                    def.setLevel(compressionLevel);
+                }
+            };
+            page.writeTo(gzipStream);
+            gzipStream.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            // in-memory streams don't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] encodeFooter() {
+        ThriftCompactWriter footer = new ThriftCompactWriter();
+        footer.structBegin();
+        footer.fieldI32(1, 1);
+
+        footer.fieldListBegin(2, ThriftCompactWriter.TYPE_STRUCT, schema.size() + 1);
+        footer.structBegin();
+        footer.fieldString(4, "schema");
+        footer.fieldI32(5, schema.size());
+        footer.structEnd();
+        for (int i = 0; i < schema.size(); i++) {
+            ParquetSchema.ColumnType type = schema.getType(i);
+            footer.structBegin();
+            footer.fieldI32(1, type.physicalType);
+            footer.fieldI32(3, REPETITION_OPTIONAL);
+            footer.fieldString(4, schema.getName(i));
+            if (type.convertedType >= 0) {
+                footer.fieldI32(6, type.convertedType);
+            }
+            footer.structEnd();
+        }
+
+        footer.fieldI64(3, rows);
+
+        footer.fieldListBegin(4, ThriftCompactWriter.TYPE_STRUCT, rowGroups.size());
+        for (RowGroup rowGroup : rowGroups) {
+            footer.structBegin();
+            footer.fieldListBegin(1, ThriftCompactWriter.TYPE_STRUCT, rowGroup.columns.size());
+            for (ColumnChunk chunk : rowGroup.columns) {
+                footer.structBegin();
+                footer.fieldI64(2, chunk.offset);
+                footer.fieldStructBegin(3);
+                footer.fieldI32(1, chunk.type.physicalType);
+                footer.fieldListBegin(2, ThriftCompactWriter.TYPE_I32, 2);
+                footer.i32(ENCODING_PLAIN);
+                footer.i32(ENCODING_RLE);
+                footer.fieldListBegin(3, ThriftCompactWriter.TYPE_BINARY, 1);
+                footer.string(chunk.name);
+                footer.fieldI32(4, gzip ? CODEC_GZIP : CODEC_UNCOMPRESSED);
+                footer.fieldI64(5, chunk.values);
+                footer.fieldI64(6, chunk.uncompressedSize);
+                footer.fieldI64(7, chunk.compressedSize);
+                footer.fieldI64(9, chunk.offset);
+                footer.fieldStructBegin(12);
+                if (chunk.max != null) {
+                    footer.fieldBinary(1, chunk.max);
+                    footer.fieldBinary(2, chunk.min);
+                }
+                footer.fieldI64(3, chunk.nullCount);
+                if (chunk.max != null) {
+                    footer.fieldBinary(5, chunk.max);
+                    footer.fieldBinary(6, chunk.min);
+                }
+                footer.structEnd();
+                footer.structEnd();
+                footer.structEnd();
+            }
+            footer.fieldI64(2, rowGroup.totalByteSize);
+            footer.fieldI64(3, rowGroup.rows);
+            footer.structEnd();
+        }
+
+        footer.fieldString(6, CREATED_BY);
+        footer.structEnd();
+        return footer.toByteArray();
+    }
+
+    private void writeIntLE(int value) {
+        writeIntLE(file, value);
+    }
+
+    private static void writeIntLE(Utf8Buffer out, int value) {
+        byte[] bytes = {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)};
+        out.append(bytes, 0, 4);
+    }
+
+    private static void writeVarint(Utf8Buffer out, long value) {
+        byte[] bytes = new byte[10];
+        int n = 0;
+        while ((value & ~0x7fL) != 0) {
+            bytes[n++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[n++] = (byte) value;
+        out.append(bytes, 0, n);
+    }
+
+    /*
+     * Definition levels and PLAIN encoded values of one column of the current row group.
+     */
+    private class ColumnBuffer {
+        private final ParquetSchema.ColumnType type;
+        private final Utf8Buffer values = new Utf8Buffer(1024);
+        private final Utf8Buffer levels = new Utf8Buffer(256);
+        private long nullCount;
+        private boolean hasStats;
+        private long min;
+        private long max;
+
+        ColumnBuffer(ParquetSchema.ColumnType type) {
+            this.type = type;
+        }
+
+        void add(Object value) {
+            if (value == null || !append(value)) {
+                levels.append(NULL_LEVEL, 0, 1);
+                nullCount++;
+            } else {
+                levels.append(VALUE_LEVEL, 0, 1);
+            }
+        }
+
+        /*
+         * Returns false if the value can't be converted to the type of the column.
+         */
+        private boolean append(Object value) {
+            switch (type) {
+                case STRING:
+                    int start = values.size();
+                    writeIntLE(values, 0);
+                    if (value instanceof CharSequence) {
+                        values.append((CharSequence) value);
+                    } else {
+                        values.append(String.valueOf(value));
+                    }
+                    int length = values.size() - start - 4;
+                    byte[] array = values.array();
+                    array[start] = (byte) length;
+                    array[start + 1] = (byte) (length >> 8);
+                    array[start + 2] = (byte) (length >> 16);
+                    array[start + 3] = (byte) (length >> 24);
+                    return true;
+                case LONG:
+                case TIMESTAMP:
+                    Long longValue = toLong(value);
+                    if (longValue == null) {
+                        return false;
+                    }
+                    appendLong(longValue);
+                    updateStats(longValue);
+                    return true;
+                case DOUBLE:
+                    Double doubleValue = toDouble(value);
+                    if (doubleValue == null || doubleValue.isNaN()) {
+                        return false;
+                    }
+                    appendLong(Double.doubleToLongBits(doubleValue));
+                    updateStats(Double.doubleToLongBits(doubleValue));
+                    return true;
+                default:
+                    Boolean booleanValue = value instanceof Boolean ? (Boolean) value
+                            : value instanceof CharSequence ? Boolean.valueOf(value.toString()) : null;
+                    if (booleanValue == null) {
+                        return false;
+                    }
+                    values.append(booleanValue ? VALUE_LEVEL : NULL_LEVEL, 0, 1);
+                    return true;
+            }
+        }
+
+        private Long toLong(Object value) {
+            if (value instanceof ReadableInstant) {
+                return ((ReadableInstant) value).getMillis();
+            } else if (value instanceof Date) {
+                return ((Date) value).getTime();
+            } else if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value instanceof CharSequence && type == ParquetSchema.ColumnType.LONG) {
+                try {
+                    return Long.parseLong(value.toString().trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private Double toDouble(Object value) {
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof CharSequence) {
+                try {
+                    return Double.parseDouble(value.toString().trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private void appendLong(long value) {
+            for (int i = 0; i < 8; i++) {
+                scratch[i] = (byte) (value >> (8 * i));
+            }
+            values.append(scratch, 0, 8);
+        }
+
+        /*
+         * Doubles are compared as doubles but kept as their raw bits.
+         */
+        private void updateStats(long value) {
+            if (!hasStats) {
+                min = value;
+                max = value;
+                hasStats = true;
+            } else if (type == ParquetSchema.ColumnType.DOUBLE) {
+                double d = Double.longBitsToDouble(value);
+                if (d < Double.longBitsToDouble(min)) {
+                    min = value;
+                }
+                if (d > Double.longBitsToDouble(max)) {
+                    max = value;
+                }
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+
+        byte[] statistic(long value) {
+            byte[] bytes = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (value >> (8 * i));
+            }
+            return bytes;
+        }
+
+        void reset() {
+            values.reset();
+            levels.reset();
+            nullCount = 0;
+            hasStats = false;
+        }
+    }
+
+    private static class ColumnChunk {
+        private final String name;
+        private final ParquetSchema.ColumnType type;
+        private long offset;
+        private long values;
+        private long uncompressedSize;
+        private long compressedSize;
+        private long nullCount;
+        private byte[] min;
+        private byte[] max;
+
+        ColumnChunk(String name, ParquetSchema.ColumnType type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private static class RowGroup {
+        private final long rows;
+        private final List<ColumnChunk> columns = new ArrayList<>();
+        private long totalByteSize;
+
+        RowGroup(long rows) {
+            this.rows = rows;
+        }
+    }
+}
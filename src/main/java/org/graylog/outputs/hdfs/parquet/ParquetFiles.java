@@ -0,0 +1,157 @@
+package org.graylog.outputs.hdfs.parquet;
+
+import org.graylog.outputs.hdfs.Utf8Buffer;
+import org.graylog2.plugin.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parquet files being built in memory, one per file path. A file is finished once it reaches
+ * a maximum size, age or number of rows, or on every call to {@link #finishDue(boolean)} if no
+ * maximum is set. Without a configured schema, the schema is inferred from the first message
+ * and used for all files from then on.
+ * <p/>
+ * The size and rows of the files being built are tracked, so the output can count them against
+ * its memory limit and buffer size, and finish the largest files early with
+ * {@link #finishLargest(long, long)}.
+ */
+public class ParquetFiles {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParquetFiles.class);
+
+    private final Integer compressionLevel;
+    private final long rowGroupSize;
+    private final long maxBytes;
+    private final long maxAgeInMillis;
+    private final long maxRows;
+    private final Map<String, ParquetFileWriter> files = new LinkedHashMap<>();
+    private ParquetSchema schema;
+    private volatile long bufferedBytes;
+    private volatile long bufferedRows;
+
+    /**
+     * @param schema           schema of the files, or null to infer it
+     * @param compressionLevel gzip level of the pages, or null to not compress them
+     */
+    public ParquetFiles(ParquetSchema schema, Integer compressionLevel, long rowGroupSize, long maxBytes,
+                        long maxAgeInMillis, long maxRows) {
+        this.schema = schema;
+        this.compressionLevel = compressionLevel;
+        this.rowGroupSize = rowGroupSize;
+        this.maxBytes = maxBytes;
+        this.maxAgeInMillis = maxAgeInMillis;
+        this.maxRows = maxRows;
+    }
+
+    public synchronized void write(String path, Message message) {
+        if (schema == null) {
+            schema = ParquetSchema.infer(message);
+            LOG.info("Inferred Parquet schema {}", schema);
+        }
+        ParquetFileWriter file = files.get(path);
+        // a new file is counted with its magic, which finishing it subtracts again
+        long size = 0;
+        if (file == null) {
+            file = new ParquetFileWriter(schema, compressionLevel, rowGroupSize);
+            files.put(path, file);
+        } else {
+            size = file.getSize();
+        }
+        file.write(message);
+        bufferedBytes += file.getSize() - size;
+        bufferedRows++;
+    }
+
+    /**
+     * Size of the files being built, including the rows not yet encoded.
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public long getBufferedRows() {
+        return bufferedRows;
+    }
+
+    /**
+     * Finishes the files which are due, or all of them.
+     */
+    public synchronized List<FinishedFile> finishDue(boolean all) {
+        List<FinishedFile> finished = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, ParquetFileWriter>> it = files.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ParquetFileWriter> entry = it.next();
+            if (all || isDue(entry.getValue(), now)) {
+                finished.add(finish(entry.getKey(), entry.getValue()));
+                it.remove();
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * Finishes the largest files until the files being built hold at most the given bytes and rows.
+     */
+    public synchronized List<FinishedFile> finishLargest(long maxBufferedBytes, long maxBufferedRows) {
+        List<FinishedFile> finished = new ArrayList<>();
+        while (!files.isEmpty() && (bufferedBytes > maxBufferedBytes || bufferedRows > maxBufferedRows)) {
+            Map.Entry<String, ParquetFileWriter> largest = null;
+            for (Map.Entry<String, ParquetFileWriter> entry : files.entrySet()) {
+                if (largest == null || entry.getValue().getSize() > largest.getValue().getSize()) {
+                    largest = entry;
+                }
+            }
+            files.remove(largest.getKey());
+            finished.add(finish(largest.getKey(), largest.getValue()));
+        }
+        return finished;
+    }
+
+    private FinishedFile finish(String path, ParquetFileWriter file) {
+        bufferedBytes -= file.getSize();
+        bufferedRows -= file.getRows();
+        Utf8Buffer data = file.finish();
+        data.addRecords((int) file.getRows());
+        return new FinishedFile(path, file.getRows(), data);
+    }
+
+    private boolean isDue(ParquetFileWriter file, long now) {
+        if (maxBytes <= 0 && maxAgeInMillis <= 0 && maxRows <= 0) {
+            return true;
+        }
+        return (maxBytes > 0 && file.getSize() >= maxBytes)
+                || (maxAgeInMillis > 0 && now - file.getCreatedAt() >= maxAgeInMillis)
+                || (maxRows > 0 && file.getRows() >= maxRows);
+    }
+
+    public static class FinishedFile {
+        private final String path;
+        private final long rows;
+        private final Utf8Buffer data;
+
+        FinishedFile(String path, long rows, Utf8Buffer data) {
+            this.path = path;
+            this.rows = rows;
+            this.data = data;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public Utf8Buffer getData() {
+            return data;
+        }
+    }
+}
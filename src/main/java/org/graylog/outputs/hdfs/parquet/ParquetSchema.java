@@ -0,0 +1,121 @@
+package org.graylog.outputs.hdfs.parquet;
+
+import org.graylog2.plugin.Message;
+import org.joda.time.ReadableInstant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flat schema of optional columns, one per message field. Configured as a comma separated
+ * list of <code>name:type</code>, e.g. <code>timestamp:timestamp,source:string,level:long</code>,
+ * or inferred from the fields of the first message.
+ */
+public class ParquetSchema {
+
+    public enum ColumnType {
+        STRING(6, 0),
+        LONG(2, -1),
+        DOUBLE(5, -1),
+        BOOLEAN(0, -1),
+        TIMESTAMP(2, 9);
+
+        final int physicalType;
+        final int convertedType;
+
+        ColumnType(int physicalType, int convertedType) {
+            this.physicalType = physicalType;
+            this.convertedType = convertedType;
+        }
+    }
+
+    private final List<String> names;
+    private final List<ColumnType> types;
+
+    private ParquetSchema(Map<String, ColumnType> columns) {
+        this.names = Collections.unmodifiableList(new ArrayList<>(columns.keySet()));
+        this.types = Collections.unmodifiableList(new ArrayList<>(columns.values()));
+    }
+
+    /**
+     * @throws IllegalArgumentException if a column is malformed or has an unknown type
+     */
+    public static ParquetSchema parse(String schema) {
+        Map<String, ColumnType> columns = new LinkedHashMap<>();
+        for (String column : schema.split(",")) {
+            column = column.trim();
+            if (column.isEmpty()) {
+                continue;
+            }
+            int colon = column.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected name:type, got " + column);
+            }
+            columns.put(column.substring(0, colon).trim(),
+                    ColumnType.valueOf(column.substring(colon + 1).trim().toUpperCase()));
+        }
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("Schema has no columns");
+        }
+        return new ParquetSchema(columns);
+    }
+
+    /**
+     * Derives the schema from the fields of the message, the standard fields first.
+     */
+    public static ParquetSchema infer(Message message) {
+        Map<String, ColumnType> columns = new LinkedHashMap<>();
+        columns.put(Message.FIELD_TIMESTAMP, ColumnType.TIMESTAMP);
+        columns.put(Message.FIELD_SOURCE, ColumnType.STRING);
+        columns.put(Message.FIELD_MESSAGE, ColumnType.STRING);
+        List<String> fields = new ArrayList<>(message.getFieldNames());
+        Collections.sort(fields);
+        for (String field : fields) {
+            if (!columns.containsKey(field)) {
+                columns.put(field, typeOf(message.getField(field)));
+            }
+        }
+        return new ParquetSchema(columns);
+    }
+
+    private static ColumnType typeOf(Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ColumnType.LONG;
+        } else if (value instanceof Number) {
+            return ColumnType.DOUBLE;
+        } else if (value instanceof Boolean) {
+            return ColumnType.BOOLEAN;
+        } else if (value instanceof ReadableInstant || value instanceof Date) {
+            return ColumnType.TIMESTAMP;
+        }
+        return ColumnType.STRING;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int column) {
+        return names.get(column);
+    }
+
+    public ColumnType getType(int column) {
+        return types.get(column);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(names.get(i)).append(':').append(types.get(i).name().toLowerCase());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package org.graylog.outputs.hdfs.parquet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Just enough of the Thrift compact protocol to write Parquet page headers and file footers.
+ */
+class ThriftCompactWriter {
+
+    static final int TYPE_I32 = 5;
+    static final int TYPE_I64 = 6;
+    static final int TYPE_BINARY = 8;
+    static final int TYPE_LIST = 9;
+    static final int TYPE_STRUCT = 12;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    private final Deque<Integer> fieldIds = new ArrayDeque<>();
+    private int lastFieldId;
+
+    void structBegin() {
+        fieldIds.push(lastFieldId);
+        lastFieldId = 0;
+    }
+
+    void structEnd() {
+        out.write(0);
+        lastFieldId = fieldIds.pop();
+    }
+
+    void fieldI32(int id, int value) {
+        fieldHeader(id, TYPE_I32);
+        i32(value);
+    }
+
+    void fieldI64(int id, long value) {
+        fieldHeader(id, TYPE_I64);
+        varint((value << 1) ^ (value >> 63));
+    }
+
+    void fieldBinary(int id, byte[] value) {
+        fieldHeader(id, TYPE_BINARY);
+        binary(value);
+    }
+
+    void fieldString(int id, String value) {
+        fieldBinary(id, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void fieldStructBegin(int id) {
+        fieldHeader(id, TYPE_STRUCT);
+        structBegin();
+    }
+
+    void fieldListBegin(int id, int elementType, int size) {
+        fieldHeader(id, TYPE_LIST);
+        listBegin(elementType, size);
+    }
+
+    void listBegin(int elementType, int size) {
+        if (size < 15) {
+            out.write((size << 4) | elementType);
+        } else {
+            out.write(0xf0 | elementType);
+            varint(size);
+        }
+    }
+
+    void i32(int value) {
+        varint(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+    }
+
+    void string(String value) {
+        binary(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    private void binary(byte[] value) {
+        varint(value.length);
+        out.write(value, 0, value.length);
+    }
+
+    private void fieldHeader(int id, int type) {
+        int delta = id - lastFieldId;
+        if (delta > 0 && delta <= 15) {
+            out.write((delta << 4) | type);
+        } else {
+            out.write(type);
+            i32(id);
+        }
+        lastFieldId = id;
+    }
+
+    private void varint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,655 @@
+package org.apache.hadoop.fs.http.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a WebHDFS name node and data node, keeping the files in a local
+ * directory. CREATE and APPEND are redirected with a 307 to the data node, which runs on a port
+ * of its own, like on a real cluster. OPEN, GETFILESTATUS, LISTSTATUS, MKDIRS, RENAME, CONCAT,
+ * DELETE and GETHOMEDIRECTORY are answered by the name node. Errors are reported as
+ * RemoteException JSON with the status codes of Hadoop.
+ * <p/>
+ * For load tests every request can be delayed, data node uploads can be capped to a total
+ * throughput, and faults can be injected at random: 5xx responses, connections closed without a
+ * response, and lease errors on CREATE and APPEND. All of them can be changed while the server
+ * runs.
+ * <p/>
+ * A second writer of a file is rejected with an AlreadyBeingCreatedException, as HDFS allows
+ * only one writer per file. Like on a real cluster, the name node redirects a CREATE without
+ * checking whether the file exists, the data node rejects the upload with a
+ * FileAlreadyExistsException unless it overwrites.
+ * <p/>
+ * Like the AuthenticationFilter of Hadoop, the name node hands clients without a token a
+ * {@code hadoop.auth} cookie with a simple token valid for ten hours, so they can send it
+ * instead of authenticating again.
+ */
+public class FakeWebHDFSServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FakeWebHDFSServer.class);
+
+    private static final String PREFIX = "/webhdfs/v1";
+
+    private static final String FILE_NOT_FOUND = "java.io.FileNotFoundException";
+    private static final String FILE_EXISTS = "org.apache.hadoop.fs.FileAlreadyExistsException";
+    private static final String ALREADY_BEING_CREATED = "org.apache.hadoop.hdfs.protocol.AlreadyBeingCreatedException";
+    private static final String RECOVERY_IN_PROGRESS = "org.apache.hadoop.hdfs.protocol.RecoveryInProgressException";
+    private static final String ACCESS_DENIED = "org.apache.hadoop.security.AccessControlException";
+    private static final String NOT_EMPTY = "org.apache.hadoop.fs.PathIsNotEmptyDirectoryException";
+    private static final String ILLEGAL_ARGUMENT = "java.lang.IllegalArgumentException";
+    private static final String IO_EXCEPTION = "java.io.IOException";
+
+    private static final String AUTH_COOKIE = "hadoop.auth";
+    private static final long TOKEN_VALIDITY_MILLIS = 36000 * 1000L;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final File root;
+    private final String rootPath;
+    private final HttpServer nameNode;
+    private final HttpServer dataNode;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Boolean> writers = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong injectedFaults = new AtomicLong();
+    private final AtomicLong issuedTokens = new AtomicLong();
+
+    private volatile long latencyInMillis;
+    private volatile Throttle throttle;
+    private volatile double serverErrorRate;
+    private volatile double resetRate;
+    private volatile double leaseErrorRate;
+    private volatile double uploadErrorRate;
+    private volatile boolean discardUploads;
+
+    /**
+     * @param root directory holding the files, created if missing
+     * @param port port of the name node, 0 for any free port. The data node always uses a free port
+     */
+    public FakeWebHDFSServer(File root, int port) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Can't create directory " + root);
+        }
+        this.root = root.getCanonicalFile();
+        this.rootPath = this.root.getPath();
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FakeWebHDFS-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.nameNode = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.dataNode = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        nameNode.setExecutor(executor);
+        dataNode.setExecutor(executor);
+        nameNode.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, false);
+            }
+        });
+        dataNode.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, true);
+            }
+        });
+    }
+
+    public void start() {
+        nameNode.start();
+        dataNode.start();
+        LOG.info("Fake WebHDFS name node listening on {}, data node on port {}, files in {}",
+                getUrl(), dataNode.getAddress().getPort(), root);
+    }
+
+    public void stop() {
+        nameNode.stop(0);
+        dataNode.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * URL of the name node, as passed to {@link WebHDFSConnection}.
+     */
+    public String getUrl() {
+        return "http://localhost:" + getPort();
+    }
+
+    public int getPort() {
+        return nameNode.getAddress().getPort();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Delay added to every request of the name node and the data node.
+     */
+    public void setLatency(long latencyInMillis) {
+        this.latencyInMillis = latencyInMillis;
+    }
+
+    /**
+     * Caps the bytes per second received by all data node uploads together, 0 for no cap.
+     */
+    public void setThroughputLimit(long bytesPerSecond) {
+        this.throttle = bytesPerSecond > 0 ? new Throttle(bytesPerSecond) : null;
+    }
+
+    /**
+     * Share of the requests answered with a 500.
+     */
+    public void setServerErrorRate(double serverErrorRate) {
+        this.serverErrorRate = serverErrorRate;
+    }
+
+    /**
+     * Share of the requests whose connection is closed without a response.
+     */
+    public void setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+    }
+
+    /**
+     * Share of the CREATE and APPEND requests rejected as if another client still held the lease
+     * of the file, with an AlreadyBeingCreatedException or RecoveryInProgressException.
+     */
+    public void setLeaseErrorRate(double leaseErrorRate) {
+        this.leaseErrorRate = leaseErrorRate;
+    }
+
+    /**
+     * Share of the data node uploads answered with a 500 after their data was received, without
+     * writing it, as if the pipeline failed before the data was persisted.
+     */
+    public void setUploadErrorRate(double uploadErrorRate) {
+        this.uploadErrorRate = uploadErrorRate;
+    }
+
+    /**
+     * Makes the data node read and drop the data of uploads. Files are still created, but stay
+     * empty, so benchmarks measure the client and not the local disk.
+     */
+    public void setDiscardUploads(boolean discardUploads) {
+        this.discardUploads = discardUploads;
+    }
+
+    /**
+     * Requests received by the name node and the data node.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Bytes written to files by data node uploads.
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public long getInjectedFaults() {
+        return injectedFaults.get();
+    }
+
+    /**
+     * {@code hadoop.auth} cookies handed to clients which sent none.
+     */
+    public long getIssuedTokens() {
+        return issuedTokens.get();
+    }
+
+    private void serve(HttpExchange exchange, boolean isDataNode) {
+        requests.incrementAndGet();
+        try {
+            if (latencyInMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyInMillis);
+            }
+            if (isFault(resetRate)) {
+                LOG.debug("Injected reset of {}", exchange.getRequestURI());
+                return;
+            }
+            if (isFault(serverErrorRate)) {
+                respondError(exchange, 500, IO_EXCEPTION, "Injected server error");
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String op = params.containsKey("op") ? params.get("op").toUpperCase() : "";
+            String path = exchange.getRequestURI().getPath();
+            if (!path.startsWith(PREFIX)) {
+                respondError(exchange, 404, FILE_NOT_FOUND, "Not a WebHDFS path: " + path);
+                return;
+            }
+            path = path.substring(PREFIX.length());
+            File file = resolve(path);
+            if (file == null) {
+                respondError(exchange, 403, ACCESS_DENIED, "Path outside of the file system: " + path);
+            } else if (isDataNode) {
+                serveDataNode(exchange, op, path, file, params);
+            } else {
+                issueToken(exchange, params);
+                serveNameNode(exchange, op, path, file, params);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Failed to serve {}", exchange.getRequestURI(), e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /*
+     * Sets the cookie in the format of the AuthenticationFilter: the token fields, signed. The
+     * signature is never checked, it only has to be present.
+     */
+    private void issueToken(HttpExchange exchange, Map<String, String> params) {
+        String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookies != null && cookies.contains(AUTH_COOKIE + "=")) {
+            return;
+        }
+        String user = params.containsKey("user.name") ? params.get("user.name") : "dr.who";
+        String token = "u=" + user + "&p=" + user + "&t=simple&e=" + (System.currentTimeMillis() + TOKEN_VALIDITY_MILLIS);
+        token += "&s=" + Integer.toHexString(token.hashCode());
+        exchange.getResponseHeaders().add("Set-Cookie", AUTH_COOKIE + "=\"" + token + "\"; Path=/; HttpOnly");
+        issuedTokens.incrementAndGet();
+    }
+
+    private void serveNameNode(HttpExchange exchange, String op, String path, File file, Map<String, String> params)
+            throws IOException {
+        drain(exchange.getRequestBody());
+        switch (op) {
+            case "CREATE":
+                if (isFault(leaseErrorRate)) {
+                    respondError(exchange, 403, ALREADY_BEING_CREATED, "Injected lease error, " + path + " is being created");
+                } else {
+                    redirect(exchange);
+                }
+                break;
+            case "APPEND":
+                if (isFault(leaseErrorRate)) {
+                    respondError(exchange, 403, RECOVERY_IN_PROGRESS, "Injected lease error, recovery of " + path
+                            + " is in progress");
+                } else if (!file.isFile()) {
+                    respondError(exchange, 404, FILE_NOT_FOUND, "File does not exist: " + path);
+                } else {
+                    redirect(exchange);
+                }
+                break;
+            case "OPEN":
+                if (!file.isFile()) {
+                    respondError(exchange, 404, FILE_NOT_FOUND, "File does not exist: " + path);
+                } else {
+                    exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                    exchange.sendResponseHeaders(200, file.length() > 0 ? file.length() : -1);
+                    try (InputStream in = new FileInputStream(file)) {
+                        copy(in, exchange.getResponseBody(), null);
+                    }
+                }
+                break;
+            case "GETFILESTATUS":
+                if (!file.exists()) {
+                    respondError(exchange, 404, FILE_NOT_FOUND, "File does not exist: " + path);
+                } else {
+                    respond(exchange, 200, "{\"FileStatus\":" + fileStatus(file, "") + "}");
+                }
+                break;
+            case "LISTSTATUS":
+                if (!file.exists()) {
+                    respondError(exchange, 404, FILE_NOT_FOUND, "File " + path + " does not exist.");
+                } else {
+                    respond(exchange, 200, "{\"FileStatuses\":{\"FileStatus\":[" + listStatus(file) + "]}}");
+                }
+                break;
+            case "MKDIRS":
+                respond(exchange, 200, "{\"boolean\":" + (file.isDirectory() || file.mkdirs()) + "}");
+                break;
+            case "RENAME":
+                respond(exchange, 200, "{\"boolean\":" + rename(file, params.get("destination")) + "}");
+                break;
+            case "CONCAT":
+                concat(exchange, path, file, params.get("sources"));
+                break;
+            case "DELETE":
+                if (!file.exists()) {
+                    respond(exchange, 200, "{\"boolean\":false}");
+                } else if (file.isDirectory() && file.list().length > 0 && !"true".equalsIgnoreCase(params.get("recursive"))) {
+                    respondError(exchange, 403, NOT_EMPTY, "`" + path + " is non empty': Directory is not empty");
+                } else {
+                    respond(exchange, 200, "{\"boolean\":" + delete(file) + "}");
+                }
+                break;
+            case "GETHOMEDIRECTORY":
+                String user = params.containsKey("user.name") ? params.get("user.name") : "dr.who";
+                respond(exchange, 200, "{\"Path\":" + quote("/user/" + user) + "}");
+                break;
+            default:
+                respondError(exchange, 400, ILLEGAL_ARGUMENT, "Invalid value for webhdfs parameter \"op\": " + op);
+        }
+    }
+
+    private void serveDataNode(HttpExchange exchange, String op, String path, File file, Map<String, String> params)
+            throws IOException, InterruptedException {
+        boolean append = "APPEND".equals(op);
+        if (!append && !"CREATE".equals(op)) {
+            respondError(exchange, 400, ILLEGAL_ARGUMENT, "Invalid value for data node parameter \"op\": " + op);
+            return;
+        }
+        if (writers.putIfAbsent(file.getPath(), Boolean.TRUE) != null) {
+            drain(exchange.getRequestBody());
+            respondError(exchange, 403, ALREADY_BEING_CREATED, "Failed to " + op + " " + path
+                    + ", it is already being written by another client");
+            return;
+        }
+        try {
+            if (append && !file.isFile()) {
+                drain(exchange.getRequestBody());
+                respondError(exchange, 404, FILE_NOT_FOUND, "File does not exist: " + path);
+                return;
+            }
+            if (!append && file.exists() && !"true".equalsIgnoreCase(params.get("overwrite"))) {
+                drain(exchange.getRequestBody());
+                respondError(exchange, 403, FILE_EXISTS, path + " already exists");
+                return;
+            }
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Can't create directory " + parent);
+            }
+            if (isFault(uploadErrorRate)) {
+                drain(exchange.getRequestBody());
+                respondError(exchange, 500, IO_EXCEPTION, "Injected upload error, " + path + " was not written");
+                return;
+            }
+            long bytes;
+            try (OutputStream out = new FileOutputStream(file, append)) {
+                bytes = copy(exchange.getRequestBody(), discardUploads ? DISCARD : out, throttle);
+            }
+            uploadedBytes.addAndGet(bytes);
+            if (append) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.getResponseHeaders().set("Location", "hdfs://localhost:" + getPort() + path);
+                exchange.sendResponseHeaders(201, -1);
+            }
+        } finally {
+            writers.remove(file.getPath());
+        }
+    }
+
+    private void redirect(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Location", "http://localhost:" + dataNode.getAddress().getPort()
+                + exchange.getRequestURI().getRawPath() + "?" + exchange.getRequestURI().getRawQuery());
+        exchange.sendResponseHeaders(307, -1);
+    }
+
+    private boolean rename(File source, String destination) throws IOException {
+        File target = destination != null ? resolve(destination) : null;
+        if (target == null || !source.exists()) {
+            return false;
+        }
+        if (target.isDirectory()) {
+            target = new File(target, source.getName());
+        }
+        if (target.exists()) {
+            return false;
+        }
+        File parent = target.getParentFile();
+        return (parent.isDirectory() || parent.mkdirs()) && source.renameTo(target);
+    }
+
+    private void concat(HttpExchange exchange, String path, File target, String sources) throws IOException {
+        if (!target.isFile()) {
+            respondError(exchange, 404, FILE_NOT_FOUND, "File does not exist: " + path);
+            return;
+        }
+        if (sources == null || sources.isEmpty()) {
+            respondError(exchange, 400, ILLEGAL_ARGUMENT, "No sources given to concat to " + path);
+            return;
+        }
+        String[] names = sources.split(",");
+        File[] files = new File[names.length];
+        for (int i = 0; i < names.length; i++) {
+            files[i] = resolve(names[i]);
+            if (files[i] == null || !files[i].isFile()) {
+                respondError(exchange, 404, FILE_NOT_FOUND, "File does not exist: " + names[i]);
+                return;
+            } else if (files[i].equals(target)) {
+                respondError(exchange, 400, ILLEGAL_ARGUMENT, "The target " + path + " is also a source");
+                return;
+            }
+        }
+        try (OutputStream out = new FileOutputStream(target, true)) {
+            for (File file : files) {
+                try (InputStream in = new FileInputStream(file)) {
+                    copy(in, out, null);
+                }
+            }
+        }
+        for (File file : files) {
+            delete(file);
+        }
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    /*
+     * Maps the HDFS path into the root directory, or null if it would leave it.
+     */
+    private File resolve(String path) throws IOException {
+        File file = new File(root, path).getCanonicalFile();
+        String canonical = file.getPath();
+        return canonical.equals(rootPath) || canonical.startsWith(rootPath + File.separator) ? file : null;
+    }
+
+    private boolean isFault(double rate) {
+        if (rate > 0 && random.nextDouble() < rate) {
+            injectedFaults.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private String listStatus(File file) {
+        if (file.isFile()) {
+            return fileStatus(file, "");
+        }
+        String[] children = file.list();
+        Arrays.sort(children);
+        StringBuilder sb = new StringBuilder();
+        for (String child : children) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(fileStatus(new File(file, child), child));
+        }
+        return sb.toString();
+    }
+
+    private static String fileStatus(File file, String pathSuffix) {
+        boolean directory = file.isDirectory();
+        String[] children = directory ? file.list() : null;
+        return "{\"accessTime\":" + (directory ? 0 : file.lastModified())
+                + ",\"blockSize\":" + (directory ? 0 : 134217728)
+                + ",\"childrenNum\":" + (children != null ? children.length : 0)
+                + ",\"fileId\":0"
+                + ",\"group\":\"supergroup\""
+                + ",\"length\":" + (directory ? 0 : file.length())
+                + ",\"modificationTime\":" + file.lastModified()
+                + ",\"owner\":\"hdfs\""
+                + ",\"pathSuffix\":" + quote(pathSuffix)
+                + ",\"permission\":\"" + (directory ? "755" : "644") + "\""
+                + ",\"replication\":" + (directory ? 0 : 1)
+                + ",\"type\":\"" + (directory ? "DIRECTORY" : "FILE") + "\"}";
+    }
+
+    private static boolean delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        return file.delete();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void respondError(HttpExchange exchange, int status, String exception, String message)
+            throws IOException {
+        drain(exchange.getRequestBody());
+        respond(exchange, status, "{\"RemoteException\":{\"exception\":"
+                + quote(exception.substring(exception.lastIndexOf('.') + 1))
+                + ",\"javaClassName\":" + quote(exception)
+                + ",\"message\":" + quote(message) + "}}");
+    }
+
+    private static long copy(InputStream in, OutputStream out, Throttle throttle) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            if (throttle != null) {
+                throttle.acquire(n);
+            }
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) >= 0) {
+            // discard
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                String name = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+                params.put(name.toLowerCase(), value);
+            }
+        }
+        return params;
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /*
+     * Shared pacing of the uploads: every chunk reserves its share of a second at the configured
+     * rate and waits for its turn.
+     */
+    private static class Throttle {
+        private final long bytesPerSecond;
+        private long next;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(int bytes) throws IOException {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                next = Math.max(next, now);
+                waitNanos = next - now;
+                next += bytes * 1000000000L / bytesPerSecond;
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while throttling the upload", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the server until it is killed. Usage: {@code FakeWebHDFSServer <directory> [port]}.
+     * Latency in ms, the throughput cap in bytes per second and the fault rates are read from
+     * the system properties latency, throughput, serverErrorRate, resetRate, leaseErrorRate and
+     * uploadErrorRate.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: FakeWebHDFSServer <directory> [port]");
+            System.exit(1);
+        }
+        FakeWebHDFSServer server = new FakeWebHDFSServer(new File(args[0]),
+                args.length > 1 ? Integer.parseInt(args[1]) : 50070);
+        server.setLatency(Long.getLong("latency", 0));
+        server.setThroughputLimit(Long.getLong("throughput", 0));
+        server.setServerErrorRate(Double.parseDouble(System.getProperty("serverErrorRate", "0")));
+        server.setResetRate(Double.parseDouble(System.getProperty("resetRate", "0")));
+        server.setLeaseErrorRate(Double.parseDouble(System.getProperty("leaseErrorRate", "0")));
+        server.setUploadErrorRate(Double.parseDouble(System.getProperty("uploadErrorRate", "0")));
+        server.start();
+        System.out.println("WebHDFS at " + server.getUrl() + ", files in " + server.getRoot());
+        Thread.currentThread().join();
+    }
+}
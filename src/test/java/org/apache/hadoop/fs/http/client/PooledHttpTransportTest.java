@@ -0,0 +1,36 @@
+package org.apache.hadoop.fs.http.client;
+
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledHttpTransportTest {
+
+    @Test
+    public void failsAfterTheTimeoutWhenThePoolIsExhausted() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(1, 0);
+        URL url = new URL("http://localhost:50070/webhdfs/v1/?op=GETHOMEDIRECTORY");
+        HttpURLConnection leased = transport.open(url, 100);
+
+        long start = System.nanoTime();
+        try {
+            transport.open(url, 100);
+            fail("The pool has no free connection");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertTrue(System.nanoTime() - start >= 100 * 1000000L);
+        assertEquals(1, transport.getStats().getLeased());
+
+        // a released connection is leased again
+        transport.release(leased);
+        transport.release(transport.open(url, 100));
+        assertEquals(0, transport.getStats().getLeased());
+        transport.close();
+    }
+}
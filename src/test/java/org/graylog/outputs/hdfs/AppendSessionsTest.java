@@ -0,0 +1,329 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.AuthenticationType;
+import org.apache.hadoop.fs.http.client.FakeWebHDFSServer;
+import org.apache.hadoop.fs.http.client.PooledHttpTransport;
+import org.apache.hadoop.fs.http.client.WebHDFSConnection;
+import org.apache.hadoop.security.authentication.client.AuthenticationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AppendSessionsTest {
+
+    private static final long HOUR = 3600 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeWebHDFSServer server;
+    private WebHDFSConnection connection;
+    private Recovered recovered;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeWebHDFSServer(folder.getRoot(), 0);
+        server.start();
+        connection = new WebHDFSConnection(server.getUrl(), "test", "anything", AuthenticationType.PSEUDO);
+        recovered = new Recovered();
+    }
+
+    @After
+    public void tearDown() {
+        connection.close();
+        server.stop();
+    }
+
+    @Test
+    public void keepsTheStreamOpenAcrossWrites() throws Exception {
+        AppendSessions sessions = sessions(Compression.NONE, HOUR, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES);
+        sessions.write("/app.log", batch("line 1\n", 1));
+        sessions.write("/app.log", batch("line 2\n", 1));
+        assertEquals(1, sessions.size());
+        assertEquals(14, sessions.getUnconfirmedBytes());
+
+        sessions.close("/app.log");
+        assertEquals(0, sessions.size());
+        assertEquals(0, sessions.getUnconfirmedBytes());
+        assertEquals("line 1\nline 2\n", read("/app.log"));
+        assertTrue(recovered.paths.isEmpty());
+
+        // the next write appends with a new stream
+        sessions.write("/app.log", batch("line 3\n", 1));
+        sessions.closeAll();
+        assertEquals("line 1\nline 2\nline 3\n", read("/app.log"));
+    }
+
+    @Test
+    public void recoversTheDataOfAStreamFailingOnClose() throws Exception {
+        AppendSessions sessions = sessions(Compression.NONE, HOUR, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES);
+        server.setUploadErrorRate(1.0);
+        sessions.write("/app.log", batch("line 1\n", 1));
+        sessions.write("/app.log", batch("line 2\nline 3\n", 2));
+
+        try {
+            sessions.close("/app.log");
+            fail("Closing should fail when the data node rejects the upload");
+        } catch (IOException expected) {
+        }
+        assertEquals(Arrays.asList("/app.log"), recovered.paths);
+        assertEquals(Arrays.asList("line 1\nline 2\nline 3\n"), recovered.data);
+        assertEquals(Arrays.asList(3), recovered.records);
+        assertEquals(0, sessions.getUnconfirmedBytes());
+        assertEquals(0, sessions.size());
+    }
+
+    @Test
+    public void recoversOnCloseAll() throws Exception {
+        AppendSessions sessions = sessions(Compression.NONE, HOUR, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES);
+        server.setUploadErrorRate(1.0);
+        sessions.write("/a.log", batch("a\n", 1));
+        sessions.write("/b.log", batch("b\n", 1));
+
+        sessions.closeAll();
+        assertEquals(2, recovered.paths.size());
+        assertTrue(recovered.paths.containsAll(Arrays.asList("/a.log", "/b.log")));
+        assertEquals(0, sessions.getUnconfirmedBytes());
+    }
+
+    @Test
+    public void recoversOnlyDataSinceTheStreamWasOpened() throws Exception {
+        AppendSessions sessions = sessions(Compression.NONE, HOUR, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES);
+        sessions.write("/app.log", batch("line 1\n", 1));
+        sessions.close("/app.log");
+
+        server.setUploadErrorRate(1.0);
+        sessions.write("/app.log", batch("line 2\n", 1));
+        try {
+            sessions.close("/app.log");
+            fail("Closing should fail when the data node rejects the upload");
+        } catch (IOException expected) {
+        }
+        assertEquals(Arrays.asList("line 2\n"), recovered.data);
+        assertEquals("line 1\n", read("/app.log"));
+    }
+
+    @Test
+    public void writesTheDataOfAStreamFailingOnWriteAheadOfTheRetry() throws Exception {
+        FailingFiles files = new FailingFiles();
+        AppendSessions sessions = new AppendSessions(connection, files, Compression.NONE, Compression.DEFAULT_LEVEL,
+                HOUR, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES, 100, recovered);
+        sessions.write("/app.log", batch("line 1\n", 1));
+        // the failed stream never completes its upload
+        server.setUploadErrorRate(1.0);
+        files.failing = true;
+        try {
+            sessions.write("/app.log", batch("line 2\n", 1));
+            fail("Writing should fail when the stream fails");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, sessions.size());
+        assertEquals(7, sessions.getUnconfirmedBytes());
+
+        server.setUploadErrorRate(0);
+        files.failing = false;
+        // the retry of the failed batch, followed by newer data
+        sessions.write("/app.log", batch("line 2\n", 1));
+        sessions.write("/app.log", batch("line 3\n", 1));
+        sessions.closeAll();
+        assertEquals("line 1\nline 2\nline 3\n", read("/app.log"));
+        assertTrue(recovered.paths.isEmpty());
+        assertEquals(0, sessions.getUnconfirmedBytes());
+    }
+
+    @Test
+    public void recoversTheDataOfAFailedStreamWhichNoWritePickedUp() throws Exception {
+        FailingFiles files = new FailingFiles();
+        AppendSessions sessions = new AppendSessions(connection, files, Compression.NONE, Compression.DEFAULT_LEVEL,
+                HOUR, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES, 100, recovered);
+        sessions.write("/app.log", batch("line 1\n", 1));
+        server.setUploadErrorRate(1.0);
+        files.failing = true;
+        try {
+            sessions.write("/app.log", batch("line 2\n", 1));
+            fail("Writing should fail when the stream fails");
+        } catch (IOException expected) {
+        }
+
+        sessions.closeAll();
+        assertEquals(Arrays.asList("/app.log"), recovered.paths);
+        assertEquals(Arrays.asList("line 1\n"), recovered.data);
+        assertEquals(Arrays.asList(1), recovered.records);
+        assertEquals(0, sessions.getUnconfirmedBytes());
+    }
+
+    @Test
+    public void closesStreamsHoldingTooMuchUnconfirmedData() throws Exception {
+        AppendSessions sessions = sessions(Compression.NONE, HOUR, 0, 10);
+        sessions.write("/app.log", batch("line 1\n", 1));
+        assertEquals(1, sessions.size());
+        sessions.write("/app.log", batch("line 2\n", 1));
+        assertEquals(0, sessions.size());
+        assertEquals(0, sessions.getUnconfirmedBytes());
+        assertEquals("line 1\nline 2\n", read("/app.log"));
+    }
+
+    @Test
+    public void closesIdleStreams() throws Exception {
+        AppendSessions sessions = sessions(Compression.NONE, 50, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES);
+        sessions.write("/app.log", batch("line 1\n", 1));
+        sessions.closeExpired();
+        assertEquals(1, sessions.size());
+
+        Thread.sleep(60);
+        sessions.closeExpired();
+        assertEquals(0, sessions.size());
+        assertEquals("line 1\n", read("/app.log"));
+    }
+
+    @Test
+    public void reopensStreamsOlderThanTheMaximumAge() throws Exception {
+        AppendSessions sessions = sessions(Compression.NONE, HOUR, 50, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES);
+        sessions.write("/app.log", batch("line 1\n", 1));
+        Thread.sleep(60);
+        sessions.write("/app.log", batch("line 2\n", 1));
+        assertEquals(1, sessions.size());
+        assertEquals(7, sessions.getUnconfirmedBytes());
+
+        sessions.closeAll();
+        assertEquals("line 1\nline 2\n", read("/app.log"));
+        assertTrue(recovered.paths.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void closesTheLeastRecentlyUsedStreamWhenThePoolIsFull() throws Exception {
+        // two connections per host, one of them stays free for the name node
+        WebHDFSConnection pooled = new WebHDFSConnection(server.getUrl(), "test", "anything",
+                AuthenticationType.PSEUDO, new PooledHttpTransport(2, 0));
+        try {
+            AppendSessions sessions = new AppendSessions(pooled, new KnownFiles(100), Compression.NONE,
+                    Compression.DEFAULT_LEVEL, HOUR, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES, 1, recovered);
+            for (int i = 0; i < 10; i++) {
+                sessions.write("/" + (i % 5) + ".log", batch("line " + i + "\n", 1));
+                assertEquals(1, sessions.size());
+            }
+            sessions.closeAll();
+            for (int i = 0; i < 5; i++) {
+                assertEquals("line " + i + "\nline " + (i + 5) + "\n", read("/" + i + ".log"));
+            }
+            assertTrue(recovered.paths.isEmpty());
+        } finally {
+            pooled.close();
+        }
+    }
+
+    @Test
+    public void compressesEachStreamAsOneGzipMember() throws Exception {
+        AppendSessions sessions = sessions(Compression.GZIP, HOUR, 0, AppendSessions.DEFAULT_MAX_UNCONFIRMED_BYTES);
+        sessions.write("/app.log.gz", batch("line 1\n", 1));
+        sessions.write("/app.log.gz", batch("line 2\n", 1));
+        sessions.closeAll();
+
+        File file = new File(folder.getRoot(), "app.log.gz");
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(0x1f, bytes[0] & 0xff);
+        assertEquals(0x8b, bytes[1] & 0xff);
+        assertFalse("single gzip member", indexOf(bytes, new byte[]{0x1f, (byte) 0x8b, 8}, 1) >= 0);
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            assertEquals("line 1\nline 2\n", toString(in));
+        }
+    }
+
+    private AppendSessions sessions(Compression compression, long idleTimeout, long maxAge, long maxUnconfirmed) {
+        return new AppendSessions(connection, new KnownFiles(100), compression, Compression.DEFAULT_LEVEL,
+                idleTimeout, maxAge, maxUnconfirmed, 100, recovered);
+    }
+
+    private String read(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(folder.getRoot(), path).toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static String toString(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static Utf8Buffer batch(String data, int records) {
+        Utf8Buffer buffer = new Utf8Buffer();
+        buffer.append(data);
+        buffer.addRecords(records);
+        return buffer;
+    }
+
+    /*
+     * Fails the writes to its streams while failing is set.
+     */
+    private static class FailingFiles extends KnownFiles {
+        private volatile boolean failing;
+
+        FailingFiles() {
+            super(100);
+        }
+
+        @Override
+        public OutputStream open(WebHDFSConnection hdfsConnection, String path) throws IOException,
+                AuthenticationException {
+            return new FilterOutputStream(super.open(hdfsConnection, path)) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (failing) {
+                        throw new IOException("Injected write failure");
+                    }
+                    out.write(b, off, len);
+                }
+            };
+        }
+    }
+
+    private static class Recovered implements AppendSessions.Recovery {
+        private final List<String> paths = new ArrayList<>();
+        private final List<String> data = new ArrayList<>();
+        private final List<Integer> records = new ArrayList<>();
+
+        @Override
+        public synchronized void recover(String path, Utf8Buffer buffer) {
+            paths.add(path);
+            data.add(new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8));
+            records.add(buffer.getRecordCount());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.AuthenticationType;
+import org.apache.hadoop.fs.http.client.FakeWebHDFSServer;
+import org.apache.hadoop.fs.http.client.WebHDFSConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KnownFilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeWebHDFSServer server;
+    private WebHDFSConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeWebHDFSServer(folder.getRoot(), 0);
+        server.start();
+        connection = new WebHDFSConnection(server.getUrl(), "test", "anything", AuthenticationType.PSEUDO);
+    }
+
+    @After
+    public void tearDown() {
+        connection.close();
+        server.stop();
+    }
+
+    @Test
+    public void addsAFileOnceItsUploadCompleted() throws Exception {
+        KnownFiles files = new KnownFiles(KnownFiles.DEFAULT_CAPACITY);
+        OutputStream stream = files.open(connection, "/app.log");
+        batch("line 1\n").writeTo(stream);
+        assertFalse(files.contains("/app.log"));
+        stream.close();
+        assertTrue(files.contains("/app.log"));
+
+        server.setUploadErrorRate(1.0);
+        stream = files.open(connection, "/other.log");
+        batch("line 1\n").writeTo(stream);
+        try {
+            stream.close();
+            fail("Closing should fail when the data node rejects the upload");
+        } catch (IOException expected) {
+        }
+        assertFalse(files.contains("/other.log"));
+    }
+
+    @Test
+    public void appendsToAnExistingFileItDoesNotKnow() throws Exception {
+        new KnownFiles(KnownFiles.DEFAULT_CAPACITY, batch("header\n"))
+                .write(connection, "/app.log", batch("line 1\n"), Compression.NONE, Compression.DEFAULT_LEVEL);
+
+        // e.g. after a restart
+        KnownFiles files = new KnownFiles(KnownFiles.DEFAULT_CAPACITY, batch("header\n"));
+        files.write(connection, "/app.log", batch("line 2\n"), Compression.NONE, Compression.DEFAULT_LEVEL);
+        assertEquals("header\nline 1\nline 2\n", read("/app.log"));
+        assertTrue(files.contains("/app.log"));
+        assertEquals(1, files.getMisses());
+    }
+
+    private String read(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(folder.getRoot(), path).toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static Utf8Buffer batch(String data) {
+        Utf8Buffer buffer = new Utf8Buffer();
+        buffer.append(data);
+        buffer.addRecords(1);
+        return buffer;
+    }
+}
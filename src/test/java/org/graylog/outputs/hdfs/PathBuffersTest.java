@@ -0,0 +1,149 @@
+package org.graylog.outputs.hdfs;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PathBuffersTest {
+
+    @Test
+    public void swapsOutWhatWasAppended() {
+        PathBuffers buffers = new PathBuffers();
+        assertEquals(4, buffers.append("/a", message("a 1")));
+        buffers.append("/b", message("b 1"));
+        assertEquals(8, buffers.append("/a", message("a 2")));
+        assertEquals(3, buffers.getMessageCount());
+        assertEquals(12, buffers.getByteCount());
+
+        Map<String, Utf8Buffer> swapped = buffers.swap();
+        assertEquals(2, swapped.size());
+        assertEquals("a 1\na 2\n", toString(swapped.get("/a")));
+        assertEquals(2, swapped.get("/a").getRecordCount());
+        assertEquals("b 1\n", toString(swapped.get("/b")));
+        assertEquals(0, buffers.getMessageCount());
+        assertEquals(0, buffers.getByteCount());
+        assertTrue(buffers.swap().isEmpty());
+    }
+
+    @Test
+    public void joinsBuffersSpanningSeveralChunks() {
+        PathBuffers buffers = new PathBuffers();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            String line = "message " + i;
+            buffers.append("/a", message(line));
+            expected.append(line).append('\n');
+        }
+        // larger than any chunk
+        char[] large = new char[3 * 1024 * 1024];
+        Arrays.fill(large, 'x');
+        buffers.append("/a", message(new String(large)));
+        expected.append(large).append('\n');
+
+        Utf8Buffer swapped = buffers.swap().get("/a");
+        assertEquals(20001, swapped.getRecordCount());
+        assertEquals(expected.toString(), toString(swapped));
+    }
+
+    @Test
+    public void keepsEveryMessageOfConcurrentProducersIntact() throws Exception {
+        final PathBuffers buffers = new PathBuffers();
+        final int producers = 8;
+        final int messages = 20000;
+        final String[] paths = {"/a", "/b", "/c"};
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < messages; i++) {
+                            // varying lengths, so claims keep running past the end of chunks
+                            StringBuilder line = new StringBuilder().append(producer).append(' ').append(i).append(' ');
+                            for (int j = 0; j < i % 50; j++) {
+                                line.append('.');
+                            }
+                            buffers.append(paths[i % paths.length], message(line.toString()));
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Map<String, Utf8Buffer>> generations = new ArrayList<>();
+        Thread flush = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    generations.add(buffers.swap());
+                    Thread.yield();
+                }
+            }
+        });
+        flush.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        flush.join();
+        generations.add(buffers.swap());
+        assertNull(failure.get());
+
+        Map<String, Integer> next = new HashMap<>();
+        int total = 0;
+        for (Map<String, Utf8Buffer> generation : generations) {
+            for (Map.Entry<String, Utf8Buffer> entry : generation.entrySet()) {
+                String data = toString(entry.getValue());
+                assertTrue(data.endsWith("\n"));
+                String[] lines = data.split("\n");
+                assertEquals(lines.length, entry.getValue().getRecordCount());
+                for (String line : lines) {
+                    String[] parts = line.split(" ");
+                    int producer = Integer.parseInt(parts[0]);
+                    int i = Integer.parseInt(parts[1]);
+                    assertEquals(paths[i % paths.length], entry.getKey());
+                    assertEquals(i % 50, parts.length > 2 ? parts[2].length() : 0);
+                    // every producer's messages arrive once and in order
+                    Integer expected = next.get(entry.getKey() + producer);
+                    assertEquals(expected == null ? i % paths.length : expected, i);
+                    next.put(entry.getKey() + producer, i + paths.length);
+                    total++;
+                }
+            }
+        }
+        assertEquals(producers * messages, total);
+    }
+
+    private static Utf8Buffer message(String line) {
+        Utf8Buffer buffer = new Utf8Buffer();
+        buffer.append(line).append('\n');
+        buffer.addRecords(1);
+        return buffer;
+    }
+
+    private static String toString(Utf8Buffer buffer) {
+        return new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+}
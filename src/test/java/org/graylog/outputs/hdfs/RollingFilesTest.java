@@ -0,0 +1,229 @@
+package org.graylog.outputs.hdfs;
+
+import org.apache.hadoop.fs.http.client.AuthenticationType;
+import org.apache.hadoop.fs.http.client.FakeWebHDFSServer;
+import org.apache.hadoop.fs.http.client.WebHDFSConnection;
+import org.apache.hadoop.security.authentication.client.AuthenticationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollingFilesTest {
+
+    private static final Pattern PART = Pattern.compile("app\\.\\d+\\.log");
+    private static final Pattern IN_PROGRESS = Pattern.compile("_app\\.\\d+\\.log\\.inprogress");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeWebHDFSServer server;
+    private WebHDFSConnection connection;
+    private RecordingTarget target;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeWebHDFSServer(folder.getRoot(), 0);
+        server.start();
+        connection = new WebHDFSConnection(server.getUrl(), "test", "anything", AuthenticationType.PSEUDO);
+        target = new RecordingTarget(connection);
+        directory = new File(folder.getRoot(), "logs");
+    }
+
+    @After
+    public void tearDown() {
+        connection.close();
+        server.stop();
+    }
+
+    @Test
+    public void rollsBySize() throws Exception {
+        RollingFiles files = new RollingFiles(connection, target, 10, 0, 0);
+        files.write("/logs/app.log", batch("line 1\n", 1));
+        assertEquals(1, list(IN_PROGRESS).size());
+        assertTrue(list(PART).isEmpty());
+
+        files.write("/logs/app.log", batch("line 2\n", 1));
+        assertTrue(list(IN_PROGRESS).isEmpty());
+        List<File> parts = list(PART);
+        assertEquals(1, parts.size());
+        assertEquals("line 1\nline 2\n", read(parts.get(0)));
+
+        files.write("/logs/app.log", batch("line 3\n", 1));
+        assertEquals(1, list(IN_PROGRESS).size());
+        files.finishAll();
+        assertTrue(list(IN_PROGRESS).isEmpty());
+        parts = list(PART);
+        assertEquals(2, parts.size());
+        assertEquals("line 3\n", read(parts.get(1)));
+    }
+
+    @Test
+    public void rollsByRecordCount() throws Exception {
+        RollingFiles files = new RollingFiles(connection, target, 0, 0, 3);
+        files.write("/logs/app.log", batch("a\nb\n", 2));
+        assertTrue(list(PART).isEmpty());
+        files.write("/logs/app.log", batch("c\nd\n", 2));
+        List<File> parts = list(PART);
+        assertEquals(1, parts.size());
+        assertEquals("a\nb\nc\nd\n", read(parts.get(0)));
+    }
+
+    @Test
+    public void rollsByAge() throws Exception {
+        RollingFiles files = new RollingFiles(connection, target, 0, 50, 0);
+        files.write("/logs/app.log", batch("line 1\n", 1));
+        Thread.sleep(60);
+        files.rollExpired();
+        List<File> parts = list(PART);
+        assertEquals(1, parts.size());
+        assertEquals("line 1\n", read(parts.get(0)));
+
+        // a write to an expired part finishes it first
+        files.write("/logs/app.log", batch("line 2\n", 1));
+        Thread.sleep(60);
+        files.write("/logs/app.log", batch("line 3\n", 1));
+        parts = list(PART);
+        assertEquals(2, parts.size());
+        assertEquals("line 2\n", read(parts.get(1)));
+        assertEquals(1, list(IN_PROGRESS).size());
+    }
+
+    @Test
+    public void partsRolledWithinTheSameMillisecondGetDistinctNames() throws Exception {
+        RollingFiles files = new RollingFiles(connection, target, 0, 0, 1);
+        for (int i = 0; i < 5; i++) {
+            files.write("/logs/app.log", batch("line " + i + "\n", 1));
+        }
+        List<File> parts = list(PART);
+        assertEquals(5, parts.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("line " + i + "\n", read(parts.get(i)));
+        }
+    }
+
+    @Test
+    public void completesUploadBeforeRenaming() throws Exception {
+        RollingFiles files = new RollingFiles(connection, target, 0, 0, 1);
+        files.write("/logs/app.log", batch("line 1\n", 1));
+        assertEquals(1, target.closed.size());
+        assertEquals(target.written.get(0), target.closed.get(0));
+        assertTrue(target.closed.get(0).startsWith("/logs/_app."));
+    }
+
+    @Test
+    public void mapsPartsInProgressToTheirPath() throws Exception {
+        RollingFiles files = new RollingFiles(connection, target, 0, 0, 2);
+        files.write("/logs/app.log", batch("line 1\n", 1));
+        String partPath = target.written.get(0);
+        assertNotEquals("/logs/app.log", partPath);
+        assertEquals("/logs/app.log", files.getPath(partPath));
+
+        files.write("/logs/app.log", batch("line 2\n", 1));
+        assertEquals(partPath, files.getPath(partPath));
+        assertEquals("/logs/other.log", files.getPath("/logs/other.log"));
+    }
+
+    @Test
+    public void retriesFailedRenames() throws Exception {
+        RollingFiles files = new RollingFiles(connection, target, 0, 0, 1);
+        // the part is never uploaded, so there is nothing to rename yet
+        target.drop = true;
+        files.write("/logs/app.log", batch("line 1\n", 1));
+        assertEquals(1, files.getPendingRenames());
+        assertTrue(list(PART).isEmpty());
+
+        // the next part starts right away
+        target.drop = false;
+        files.write("/logs/app.log", batch("line 2\n", 1));
+        assertEquals(1, list(PART).size());
+
+        String lost = target.written.get(0);
+        File file = new File(folder.getRoot(), lost);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("line 1\n".getBytes(StandardCharsets.UTF_8));
+        }
+        files.rollExpired();
+        assertEquals(0, files.getPendingRenames());
+        List<File> parts = list(PART);
+        assertEquals(2, parts.size());
+        assertEquals("line 1\n", read(parts.get(0)));
+        assertEquals("line 2\n", read(parts.get(1)));
+    }
+
+    private List<File> list(Pattern pattern) {
+        List<File> files = new ArrayList<>();
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                Matcher matcher = pattern.matcher(child.getName());
+                if (matcher.matches()) {
+                    files.add(child);
+                }
+            }
+        }
+        // part names hold their start time, so this is the order they were started in
+        Collections.sort(files);
+        return files;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static Utf8Buffer batch(String data, int records) {
+        Utf8Buffer buffer = new Utf8Buffer();
+        buffer.append(data);
+        buffer.addRecords(records);
+        return buffer;
+    }
+
+    /*
+     * Writes every batch with its own upload, like the output does without a close interval.
+     */
+    private static class RecordingTarget implements RollingFiles.Target {
+        private final WebHDFSConnection connection;
+        private final KnownFiles knownFiles = new KnownFiles(100);
+        private final List<String> written = new ArrayList<>();
+        private final List<String> closed = new ArrayList<>();
+        private boolean drop;
+
+        RecordingTarget(WebHDFSConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(String path, Payload data) throws IOException, AuthenticationException {
+            written.add(path);
+            if (drop) {
+                return;
+            }
+            try (OutputStream out = knownFiles.open(connection, path)) {
+                data.writeTo(out);
+            }
+        }
+
+        @Override
+        public void close(String path) {
+            closed.add(path);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package org.graylog.outputs.hdfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentJournalTest {
+
+    private static final int HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysBatchesInOrder() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a1\na2\n", 2));
+        journal.append("/b.log", batch("b1\n", 1));
+
+        Collector collector = new Collector();
+        assertEquals(2, journal.replay(collector));
+        assertEquals(Arrays.asList("/a.log", "/b.log"), collector.paths);
+        assertEquals(Arrays.asList("a1\na2\n", "b1\n"), collector.data);
+        assertEquals(Arrays.asList(2, 1), collector.records);
+        assertTrue(journal.isEmpty());
+
+        assertEquals(0, journal.replay(new Collector()));
+        journal.close();
+    }
+
+    @Test
+    public void appendsBehindBatchesStillToBeReplayed() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        assertFalse(journal.appendIfNotEmpty("/a.log", batch("a1\n", 1)));
+        assertTrue(journal.isEmpty());
+
+        journal.append("/a.log", batch("a2\n", 1));
+        assertTrue(journal.appendIfNotEmpty("/a.log", batch("a3\n", 1)));
+        Collector collector = new Collector();
+        assertEquals(2, journal.replay(collector));
+        assertEquals(Arrays.asList("a2\n", "a3\n"), collector.data);
+        assertFalse(journal.appendIfNotEmpty("/a.log", batch("a4\n", 1)));
+        journal.close();
+    }
+
+    @Test
+    public void replaysAfterRestart() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a1\n", 1));
+        journal.append("/a.log", batch("a2\n", 1));
+        journal.close();
+
+        journal = new SegmentJournal(folder.getRoot(), 4096);
+        Collector collector = new Collector();
+        assertEquals(2, journal.replay(collector));
+        assertEquals(Arrays.asList("a1\n", "a2\n"), collector.data);
+        journal.close();
+
+        assertEquals(0, segments().length);
+    }
+
+    @Test
+    public void failedBatchIsReplayedAgain() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a1\n", 1));
+        journal.append("/a.log", batch("a2\n", 1));
+        journal.append("/a.log", batch("a3\n", 1));
+
+        Collector collector = new Collector();
+        collector.failOn = "a2\n";
+        try {
+            journal.replay(collector);
+            fail("Replay should fail on the second batch");
+        } catch (IOException expected) {
+        }
+        assertEquals(Arrays.asList("a1\n"), collector.data);
+        journal.close();
+
+        // the replay position survives the restart, the first batch is not written twice
+        journal = new SegmentJournal(folder.getRoot(), 4096);
+        collector = new Collector();
+        assertEquals(2, journal.replay(collector));
+        assertEquals(Arrays.asList("a2\n", "a3\n"), collector.data);
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordEndsTheSegment() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a1\n", 1));
+        journal.close();
+
+        // a crash while appending leaves the record without its length, which is written last
+        File segment = segments()[0];
+        int end = HEADER_SIZE + recordSize("/a.log", "a1\n");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(end + 4);
+            raf.writeInt(6);
+            raf.writeInt(1);
+            raf.write("/b.log".getBytes(StandardCharsets.UTF_8));
+        }
+
+        journal = new SegmentJournal(folder.getRoot(), 4096);
+        Collector collector = new Collector();
+        assertEquals(1, journal.replay(collector));
+        assertEquals(Arrays.asList("a1\n"), collector.data);
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void lengthBeyondTheSegmentEndsIt() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a1\n", 1));
+        journal.close();
+
+        File segment = segments()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(HEADER_SIZE + recordSize("/a.log", "a1\n"));
+            raf.writeInt(1 << 20);
+        }
+
+        journal = new SegmentJournal(folder.getRoot(), 4096);
+        Collector collector = new Collector();
+        assertEquals(1, journal.replay(collector));
+        assertEquals(Arrays.asList("a1\n"), collector.data);
+        journal.close();
+    }
+
+    @Test
+    public void corruptRecordIsSkipped() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a1\n", 1));
+        journal.append("/a.log", batch("a2\n", 1));
+        journal.close();
+
+        // flip the first byte of the data of the first record
+        File segment = segments()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            long position = HEADER_SIZE + 12 + "/a.log".length();
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        }
+
+        journal = new SegmentJournal(folder.getRoot(), 4096);
+        Collector collector = new Collector();
+        assertEquals(1, journal.replay(collector));
+        assertEquals(Arrays.asList("a2\n"), collector.data);
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void corruptRecordCountFailsTheCheck() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a1\n", 1));
+        journal.close();
+
+        File segment = segments()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(HEADER_SIZE + 8);
+            raf.writeInt(7);
+        }
+
+        journal = new SegmentJournal(folder.getRoot(), 4096);
+        assertEquals(0, journal.replay(new Collector()));
+        journal.close();
+    }
+
+    @Test
+    public void skipsFilesWhichAreNoSegments() throws Exception {
+        File file = new File(folder.getRoot(), String.format("%020d", 0) + ".segment");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeLong(42);
+        }
+
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        assertTrue(journal.isEmpty());
+        journal.append("/a.log", batch("a1\n", 1));
+        Collector collector = new Collector();
+        assertEquals(1, journal.replay(collector));
+        assertEquals(Arrays.asList("a1\n"), collector.data);
+        journal.close();
+
+        // left for inspection, not overwritten
+        assertEquals(8, file.length());
+    }
+
+    @Test
+    public void rollsSegmentsAndDeletesReplayedOnes() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 256);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String line = "message " + i + "\n";
+            journal.append("/a.log", batch(line, 1));
+            expected.add(line);
+        }
+        // batches larger than a segment get a segment of their own
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append("large ").append(i).append('\n');
+        }
+        journal.append("/a.log", batch(large.toString(), 100));
+        expected.add(large.toString());
+        assertTrue(segments().length > 2);
+
+        Collector collector = new Collector();
+        assertEquals(21, journal.replay(collector));
+        assertEquals(expected, collector.data);
+        // the segment being written to is kept for new batches
+        assertEquals(1, segments().length);
+
+        journal.append("/a.log", batch("after\n", 1));
+        collector = new Collector();
+        assertEquals(1, journal.replay(collector));
+        assertEquals(Arrays.asList("after\n"), collector.data);
+        journal.close();
+    }
+
+    @Test
+    public void newBatchesAfterRestartGoToANewSegment() throws Exception {
+        SegmentJournal journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a1\n", 1));
+        journal.close();
+
+        journal = new SegmentJournal(folder.getRoot(), 4096);
+        journal.append("/a.log", batch("a2\n", 1));
+        assertEquals(2, segments().length);
+
+        Collector collector = new Collector();
+        assertEquals(2, journal.replay(collector));
+        assertEquals(Arrays.asList("a1\n", "a2\n"), collector.data);
+        assertEquals(1, segments().length);
+        journal.close();
+    }
+
+    private File[] segments() {
+        File[] files = folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".segment");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int recordSize(String path, String data) {
+        return 16 + path.getBytes(StandardCharsets.UTF_8).length + data.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static Utf8Buffer batch(String data, int records) {
+        Utf8Buffer buffer = new Utf8Buffer();
+        buffer.append(data);
+        buffer.addRecords(records);
+        return buffer;
+    }
+
+    private static class Collector implements SegmentJournal.Replayer {
+        private final List<String> paths = new ArrayList<>();
+        private final List<String> data = new ArrayList<>();
+        private final List<Integer> records = new ArrayList<>();
+        private String failOn;
+
+        @Override
+        public void replay(String path, Payload payload) throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            payload.writeTo(out);
+            String text = out.toString("UTF-8");
+            if (text.equals(failOn)) {
+                throw new IOException("Injected failure");
+            }
+            paths.add(path);
+            data.add(text);
+            records.add(payload.getRecordCount());
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.graylog.outputs.hdfs;
+
+import org.graylog2.plugin.streams.Stream;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Streams for the outputs created by tests and benchmarks.
+ */
+final class TestStreams {
+
+    private TestStreams() {
+    }
+
+    /**
+     * A stream which only knows its id, every other method returns null.
+     */
+    static Stream stream(final String id) {
+        return (Stream) Proxy.newProxyInstance(Stream.class.getClassLoader(), new Class<?>[]{Stream.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getId".equals(method.getName()) ? id : null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,173 @@
+package org.graylog.outputs.hdfs;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.http.client.FakeWebHDFSServer;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebHDFSOutputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeWebHDFSServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeWebHDFSServer(folder.getRoot(), 0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void rollsAvroFilesByMessageCount() throws Exception {
+        Map<String, Object> config = configuration();
+        config.put("OUTPUT_FORMAT", OutputFormat.AVRO.name());
+        config.put("COMPRESSION", Compression.GZIP.name());
+        config.put("ROLL_MESSAGE_COUNT", 5);
+        WebHDFSOutput output = create(config);
+        // a flushed batch is never split, so every flush of five messages rolls a part
+        write(output, 0, 5);
+        output.writeToHdfs();
+        write(output, 5, 5);
+        output.writeToHdfs();
+        write(output, 10, 2);
+        output.stop();
+
+        List<File> parts = parts(".avro");
+        assertEquals(3, parts.size());
+        List<Integer> counts = new ArrayList<>();
+        int i = 0;
+        for (File part : parts) {
+            List<GenericRecord> records = readAvro(part);
+            counts.add(records.size());
+            for (GenericRecord record : records) {
+                assertEquals("message " + i, record.get("message").toString());
+                assertEquals(1444444444000L + i, record.get("timestamp"));
+                i++;
+            }
+        }
+        assertEquals(Arrays.asList(5, 5, 2), counts);
+    }
+
+    @Test
+    public void finishesParquetFilesEarlyWhenTheBufferIsFull() throws Exception {
+        Map<String, Object> config = configuration();
+        config.put("OUTPUT_FORMAT", OutputFormat.PARQUET.name());
+        config.put("COMPRESSION", Compression.GZIP.name());
+        config.put("ROLL_MESSAGE_COUNT", 1000);
+        config.put("BUFFER_SIZE", 10);
+        WebHDFSOutput output = create(config);
+        // writers wait for the flush, which finishes the largest files until half the buffer is free
+        write(output, 0, 25);
+        output.stop();
+
+        List<File> parts = parts(".parquet");
+        assertTrue(parts.size() > 1);
+        List<Group> rows = new ArrayList<>();
+        for (File part : parts) {
+            List<Group> partRows = readParquet(part);
+            assertTrue(partRows.size() <= 10);
+            rows.addAll(partRows);
+        }
+        assertEquals(25, rows.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals("message " + i, rows.get(i).getString("message", 0));
+            assertEquals(1444444444000L + i, rows.get(i).getLong("timestamp", 0));
+            assertEquals(i % 8, rows.get(i).getLong("level", 0));
+        }
+    }
+
+    private Map<String, Object> configuration() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("HDFS_HOST_NAME", "localhost");
+        config.put("HDFS_PORT", server.getPort());
+        config.put("USER_NAME", "test");
+        config.put("FILE", "/logs/app");
+        // flushed by the test only
+        config.put("FLUSH_INTERVAL", 3600);
+        return config;
+    }
+
+    private static WebHDFSOutput create(Map<String, Object> config) throws Exception {
+        return new WebHDFSOutput(TestStreams.stream("test"), new Configuration(config), new MetricRegistry());
+    }
+
+    private static void write(WebHDFSOutput output, int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++) {
+            Message message = new Message("message " + i, "host", new DateTime(1444444444000L + i, DateTimeZone.UTC));
+            message.addField("level", i % 8);
+            output.write(message);
+        }
+    }
+
+    /*
+     * Finished parts in the order they were started, skipping parts in progress.
+     */
+    private List<File> parts(String extension) {
+        List<File> parts = new ArrayList<>();
+        File[] files = new File(folder.getRoot(), "logs").listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().startsWith("app.") && file.getName().endsWith(extension)) {
+                    parts.add(file);
+                }
+            }
+        }
+        return parts;
+    }
+
+    private static List<GenericRecord> readAvro(File file) throws IOException {
+        List<GenericRecord> records = new ArrayList<>();
+        try (DataFileStream<GenericRecord> stream = new DataFileStream<>(new FileInputStream(file),
+                new GenericDatumReader<GenericRecord>())) {
+            for (GenericRecord record : stream) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static List<Group> readParquet(File file) throws IOException {
+        List<Group> rows = new ArrayList<>();
+        try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(),
+                new Path(file.getAbsolutePath())).build()) {
+            Group row;
+            while ((row = reader.read()) != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,130 @@
+package org.graylog.outputs.hdfs.avro;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.graylog.outputs.hdfs.Utf8Buffer;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AvroContainerTest {
+
+    @Test
+    public void readsBlocksAppendedToTheHeader() throws Exception {
+        AvroContainer container = new AvroContainer(null);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        container.getHeader().writeTo(file);
+        container.toBlock(records(container, 0, 2)).writeTo(file);
+        // a later append
+        container.toBlock(records(container, 2, 1)).writeTo(file);
+
+        List<GenericRecord> records = read(file.toByteArray(), "null");
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; i++) {
+            assertMessage(i, records.get(i));
+        }
+    }
+
+    @Test
+    public void readsDeflatedBlocks() throws Exception {
+        AvroContainer container = new AvroContainer(6);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        container.getHeader().writeTo(file);
+        container.toBlock(records(container, 0, 50)).writeTo(file);
+        container.toBlock(records(container, 50, 50)).writeTo(file);
+
+        List<GenericRecord> records = read(file.toByteArray(), "deflate");
+        assertEquals(100, records.size());
+        for (int i = 0; i < 100; i++) {
+            assertMessage(i, records.get(i));
+        }
+    }
+
+    @Test
+    public void blocksCarryTheirRecordCount() {
+        AvroContainer container = new AvroContainer(null);
+        Utf8Buffer block = container.toBlock(records(container, 0, 7));
+        assertEquals(7, block.getRecordCount());
+        // the block starts with the zig-zag encoded record count
+        assertEquals(14, block.array()[0]);
+    }
+
+    @Test
+    public void encodesFieldTypes() throws Exception {
+        AvroContainer container = new AvroContainer(null);
+        Message message = new Message("non ascii: ä€😀", "source", new DateTime(1000L, DateTimeZone.UTC));
+        message.addField("flag", true);
+        message.addField("small", 42);
+        message.addField("large", Long.MIN_VALUE);
+        message.addField("ratio", -0.5);
+        message.addField("when", new DateTime(2000L, DateTimeZone.UTC));
+        Utf8Buffer buffer = new Utf8Buffer();
+        container.encode(message, buffer);
+        buffer.addRecords(1);
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        container.getHeader().writeTo(file);
+        container.toBlock(buffer).writeTo(file);
+
+        GenericRecord record = read(file.toByteArray(), "null").get(0);
+        assertEquals(1000L, record.get("timestamp"));
+        assertEquals("non ascii: ä€😀", record.get("message").toString());
+        Map<?, ?> fields = (Map<?, ?>) record.get("fields");
+        assertEquals(true, fields.get(new Utf8("flag")));
+        assertEquals(42L, fields.get(new Utf8("small")));
+        assertEquals(Long.MIN_VALUE, fields.get(new Utf8("large")));
+        assertEquals(-0.5, fields.get(new Utf8("ratio")));
+        assertEquals(new DateTime(2000L, DateTimeZone.UTC).toString(), fields.get(new Utf8("when")).toString());
+        assertNull(fields.get(new Utf8("timestamp")));
+    }
+
+    private static Utf8Buffer records(AvroContainer container, int first, int count) {
+        Utf8Buffer buffer = new Utf8Buffer();
+        for (int i = first; i < first + count; i++) {
+            container.encode(message(i), buffer);
+            buffer.addRecords(1);
+        }
+        return buffer;
+    }
+
+    private static Message message(int i) {
+        Message message = new Message("message " + i, "host-" + (i % 3), new DateTime(1444444444000L + i, DateTimeZone.UTC));
+        message.addField("level", i % 8);
+        message.addField("response_time", i / 4.0);
+        return message;
+    }
+
+    private static void assertMessage(int i, GenericRecord record) {
+        assertEquals(1444444444000L + i, record.get("timestamp"));
+        assertEquals("host-" + (i % 3), record.get("source").toString());
+        assertEquals("message " + i, record.get("message").toString());
+        Map<?, ?> fields = (Map<?, ?>) record.get("fields");
+        assertEquals((long) (i % 8), fields.get(new Utf8("level")));
+        assertEquals(i / 4.0, fields.get(new Utf8("response_time")));
+    }
+
+    private static List<GenericRecord> read(byte[] file, String codec) throws IOException {
+        List<GenericRecord> records = new ArrayList<>();
+        try (DataFileStream<GenericRecord> stream = new DataFileStream<>(new ByteArrayInputStream(file),
+                new GenericDatumReader<GenericRecord>())) {
+            assertEquals(codec, stream.getMetaString("avro.codec"));
+            for (GenericRecord record : stream) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+}
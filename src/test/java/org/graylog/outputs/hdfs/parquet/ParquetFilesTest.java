@@ -0,0 +1,197 @@
+package org.graylog.outputs.hdfs.parquet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.hadoop.metadata.ParquetMetadata;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.OriginalType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.graylog.outputs.hdfs.Utf8Buffer;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParquetFilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsInferredSchemaBack() throws Exception {
+        ParquetFiles files = new ParquetFiles(null, null, 1024 * 1024, 0, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            files.write("/logs/app", message(i));
+        }
+        List<ParquetFiles.FinishedFile> finished = files.finishDue(false);
+        assertEquals(1, finished.size());
+        assertEquals(100, finished.get(0).getRows());
+        assertEquals(100, finished.get(0).getData().getRecordCount());
+        assertEquals(0, files.getBufferedRows());
+        assertEquals(0, files.getBufferedBytes());
+
+        File file = save(finished.get(0).getData());
+        MessageType schema = footer(file).getFileMetaData().getSchema();
+        assertEquals(PrimitiveTypeName.INT64, schema.getType("timestamp").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(OriginalType.TIMESTAMP_MILLIS, schema.getType("timestamp").getOriginalType());
+        assertEquals(PrimitiveTypeName.BINARY, schema.getType("source").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(PrimitiveTypeName.INT64, schema.getType("level").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(PrimitiveTypeName.DOUBLE, schema.getType("response_time").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(PrimitiveTypeName.BOOLEAN, schema.getType("cached").asPrimitiveType().getPrimitiveTypeName());
+
+        List<Group> rows = read(file);
+        assertEquals(100, rows.size());
+        for (int i = 0; i < 100; i++) {
+            assertRow(i, rows.get(i));
+        }
+    }
+
+    @Test
+    public void readsGzipPagesAndRowGroupsBack() throws Exception {
+        // small row groups, so the file holds several
+        ParquetFiles files = new ParquetFiles(null, 6, 1024, 0, 0, 0);
+        for (int i = 0; i < 500; i++) {
+            files.write("/logs/app", message(i));
+        }
+        File file = save(files.finishDue(true).get(0).getData());
+
+        ParquetMetadata footer = footer(file);
+        assertTrue(footer.getBlocks().size() > 1);
+        long rowCount = 0;
+        for (BlockMetaData block : footer.getBlocks()) {
+            assertEquals(CompressionCodecName.GZIP, block.getColumns().get(0).getCodec());
+            rowCount += block.getRowCount();
+        }
+        assertEquals(500, rowCount);
+
+        List<Group> rows = read(file);
+        assertEquals(500, rows.size());
+        for (int i = 0; i < 500; i++) {
+            assertRow(i, rows.get(i));
+        }
+    }
+
+    @Test
+    public void readsConfiguredSchemaBack() throws Exception {
+        ParquetSchema schema = ParquetSchema.parse("timestamp:timestamp,message:string,level:long,missing:string");
+        ParquetFiles files = new ParquetFiles(schema, null, 1024 * 1024, 0, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            files.write("/logs/app", message(i));
+        }
+        File file = save(files.finishDue(true).get(0).getData());
+
+        MessageType fileSchema = footer(file).getFileMetaData().getSchema();
+        assertEquals(4, fileSchema.getFieldCount());
+        List<Group> rows = read(file);
+        assertEquals(10, rows.size());
+        for (int i = 0; i < 10; i++) {
+            Group row = rows.get(i);
+            assertEquals(1444444444000L + i, row.getLong("timestamp", 0));
+            assertEquals("message " + i, row.getString("message", 0));
+            assertEquals(i % 8, row.getLong("level", 0));
+            assertEquals(0, row.getFieldRepetitionCount("missing"));
+        }
+    }
+
+    @Test
+    public void finishesFilesOnceTheyReachTheirMaximumRows() throws Exception {
+        ParquetFiles files = new ParquetFiles(null, null, 1024 * 1024, 0, 0, 30);
+        for (int i = 0; i < 40; i++) {
+            files.write(i < 35 ? "/logs/a" : "/logs/b", message(i));
+        }
+        List<ParquetFiles.FinishedFile> finished = files.finishDue(false);
+        assertEquals(1, finished.size());
+        assertEquals("/logs/a", finished.get(0).getPath());
+        assertEquals(35, read(save(finished.get(0).getData())).size());
+        assertEquals(5, files.getBufferedRows());
+    }
+
+    @Test
+    public void finishesTheLargestFilesFirst() throws Exception {
+        ParquetFiles files = new ParquetFiles(null, null, 1024 * 1024, 0, 0, 1000);
+        for (int i = 0; i < 60; i++) {
+            files.write(i < 40 ? "/logs/large" : i < 55 ? "/logs/medium" : "/logs/small", message(i));
+        }
+        List<ParquetFiles.FinishedFile> finished = files.finishLargest(Long.MAX_VALUE, 30);
+        assertEquals(1, finished.size());
+        assertEquals("/logs/large", finished.get(0).getPath());
+        assertEquals(20, files.getBufferedRows());
+
+        finished = files.finishLargest(Long.MAX_VALUE, 4);
+        assertEquals(2, finished.size());
+        assertEquals("/logs/medium", finished.get(0).getPath());
+        assertEquals("/logs/small", finished.get(1).getPath());
+        assertEquals(0, files.getBufferedRows());
+        assertEquals(0, files.getBufferedBytes());
+
+        // every file finished early is complete
+        assertEquals(15, read(save(finished.get(0).getData())).size());
+    }
+
+    private static Message message(int i) {
+        Message message = new Message("message " + i, "host-" + (i % 3), new DateTime(1444444444000L + i, DateTimeZone.UTC));
+        message.addField("level", i % 8);
+        message.addField("response_time", i / 4.0);
+        message.addField("cached", i % 2 == 0);
+        if (i % 5 != 4) {
+            message.addField("user", "user-" + i);
+        }
+        return message;
+    }
+
+    private static void assertRow(int i, Group row) {
+        assertEquals(1444444444000L + i, row.getLong("timestamp", 0));
+        assertEquals("host-" + (i % 3), row.getString("source", 0));
+        assertEquals("message " + i, row.getString("message", 0));
+        assertEquals(i % 8, row.getLong("level", 0));
+        assertEquals(i / 4.0, row.getDouble("response_time", 0), 0.0);
+        assertEquals(i % 2 == 0, row.getBoolean("cached", 0));
+        if (i % 5 != 4) {
+            assertEquals("user-" + i, row.getString("user", 0));
+        } else {
+            assertEquals(0, row.getFieldRepetitionCount("user"));
+        }
+    }
+
+    private File save(Utf8Buffer data) throws IOException {
+        File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            data.writeTo(out);
+        }
+        return file;
+    }
+
+    private static ParquetMetadata footer(File file) throws IOException {
+        return ParquetFileReader.readFooter(new Configuration(), new Path(file.getAbsolutePath()));
+    }
+
+    private static List<Group> read(File file) throws IOException {
+        List<Group> rows = new ArrayList<>();
+        try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(),
+                new Path(file.getAbsolutePath())).build()) {
+            Group row;
+            while ((row = reader.read()) != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}